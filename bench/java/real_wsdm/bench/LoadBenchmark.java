@@ -0,0 +1,74 @@
+package real_wsdm.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import real_wsdm.HashNGramTable;
+import real_wsdm.MappedNGramTable;
+import real_wsdm.NGramTable;
+import real_wsdm.NGramTableLoader;
+import real_wsdm.NGramTableSnapshot;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to get a feature table ready, from the TSV (one thread or all
+ * cores), from its snapshot, or by mapping its lexicon.
+ *
+ * @author fsqcds
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LoadBenchmark {
+
+    @Param({"1000000"})
+    public int entries;
+
+    @Param({"tsv-serial", "tsv-parallel", "snapshot", "mapped"})
+    public String format;
+
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        path = SyntheticData.ngrams(entries);
+        if (format.equals("snapshot")) {
+            NGramTableSnapshot.write(NGramTableLoader.load(path), path);
+        } else if (format.equals("mapped") && !Files.exists(Paths.get(path + ".bin"))) {
+            MappedNGramTable.convert(path, path + ".bin");
+        }
+    }
+
+    @Benchmark
+    public NGramTable load() throws Exception {
+        switch (format) {
+            case "tsv-serial":
+                return NGramTableLoader.load(path, 1);
+            case "tsv-parallel":
+                return NGramTableLoader.load(path);
+            case "snapshot":
+                HashNGramTable table = NGramTableSnapshot.load(path);
+                if (table == null) {
+                    throw new IllegalStateException("no valid snapshot of " + path);
+                }
+                return table;
+            default:
+                return MappedNGramTable.open(path + ".bin");
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package real_wsdm.bench;
+
+import org.lemurproject.galago.utility.Parameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import real_wsdm.MappedNGramTable;
+import real_wsdm.NGramTable;
+import real_wsdm.RealWSDMTraversal.RWSDMFeature;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one external n-gram lookup, on the heap table and on the mapped
+ * lexicon, by n-gram order.
+ * <p>
+ * "ids" is the lookup of already mapped term ids (the per clause cost in the
+ * traversal), "terms" adds the mapping of the stemmed terms to ids (the per
+ * node cost), "containsNGram" is the public api that also stems.
+ *
+ * @author fsqcds
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LookupBenchmark {
+    private static final int NGRAMS = 4096;
+
+    @Param({"heap", "mapped"})
+    public String storage;
+
+    @Param({"1", "2", "3"})
+    public int order;
+
+    private RWSDMFeature feature;
+    private NGramTable table;
+    private String[][] ngrams;
+    private int[][] ids;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String path = SyntheticData.ngrams(1000000);
+        if (storage.equals("mapped")) {
+            String lexicon = path + ".bin";
+            if (!Files.exists(Paths.get(lexicon))) {
+                MappedNGramTable.convert(path, lexicon);
+            }
+            path = lexicon;
+        }
+        Parameters p = Parameters.instance();
+        p.set("name", "ext");
+        p.set("type", "external");
+        p.set("path", path);
+        feature = new RWSDMFeature(p);
+        table = feature.featureValues.current();
+
+        // same distribution as the table : mostly hits for unigrams, mostly misses for trigrams
+        Random random = new Random(order);
+        ngrams = new String[NGRAMS][order];
+        ids = new int[NGRAMS][order];
+        for (int n = 0; n < NGRAMS; n++) {
+            for (int i = 0; i < order; i++) {
+                ngrams[n][i] = SyntheticData.term(SyntheticData.draw(random));
+                ids[n][i] = table.termId(ngrams[n][i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public int ids() {
+        int n = next();
+        return table.get(ids[n], 0, order);
+    }
+
+    @Benchmark
+    public int terms() {
+        String[] ngram = ngrams[next()];
+        int[] termIds = new int[order];
+        for (int i = 0; i < order; i++) {
+            termIds[i] = table.termId(ngram[i]);
+        }
+        return table.get(termIds, 0, order);
+    }
+
+    @Benchmark
+    public boolean containsNGram() {
+        return feature.containsNGram(ngrams[next()]);
+    }
+
+    private int next() {
+        int n = next;
+        next = (next + 1) & (NGRAMS - 1);
+        return n;
+    }
+}
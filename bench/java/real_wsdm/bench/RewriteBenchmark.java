@@ -0,0 +1,120 @@
+package real_wsdm.bench;
+
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.RetrievalFactory;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.utility.Parameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import real_wsdm.RealWSDMTraversal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the #rwsdm rewrite by query length, with and without the
+ * external n-gram features, with a warm or (almost) no statistics cache.
+ * <p>
+ * "rewrite" runs RealWSDMTraversal.afterNode alone, "transform" the whole
+ * Retrieval.transformQuery (all the traversals of galago). Run with
+ * "-prof gc" for the allocation rate per rewrite.
+ *
+ * @author fsqcds
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RewriteBenchmark {
+    private static final int QUERIES = 1024;
+
+    @Param({"2", "4", "6", "10"})
+    public int length;
+
+    @Param({"false", "true"})
+    public boolean external;
+
+    @Param({"warm", "cold"})
+    public String statistics;
+
+    private Retrieval retrieval;
+    private RealWSDMTraversal traversal;
+    private Node[] queries;
+    private Parameters queryParams;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        StringBuilder features = new StringBuilder();
+        features.append(feature("1-const", "const", 0.8, 1))
+                .append(',').append(feature("1-lntf", "logtf", 0.1, 1))
+                .append(',').append(feature("1-lndf", "logdf", 0.1, 1))
+                .append(',').append(feature("2-const", "const", 0.1, 2))
+                .append(',').append(feature("2-lntf", "logtf", 0.05, 2))
+                .append(',').append(feature("2-lndf", "logdf", 0.05, 2))
+                .append(',').append(feature("3-const", "const", 0.05, 3))
+                .append(',').append(feature("3-lntf", "logtf", 0.02, 3));
+        if (external) {
+            String path = SyntheticData.ngrams(1000000).replace("\\", "\\\\");
+            for (int order = 1; order <= 3; order++) {
+                features.append(',').append(feature(order + "-ext", "external", 0.01, order)
+                        .replace("}", ", \"path\" : \"" + path + "\"}"));
+            }
+        }
+        Parameters params = Parameters.parseString("{"
+                + "\"traversals\" : [{\"name\" : \"real_wsdm.RealWSDMTraversal\", \"order\" : \"before\"}],"
+                + "\"rwsdmFeatures\" : [" + features + "]}");
+        params.set("index", SyntheticData.index());
+        // every trial runs in its own jvm : the process-wide cache is sized here
+        params.set("rwsdmStatisticsCacheSize", statistics.equals("warm") ? 100000L : 0L);
+        retrieval = RetrievalFactory.instance(params);
+        traversal = new RealWSDMTraversal(retrieval);
+
+        String[][] terms = SyntheticData.queries(QUERIES, length);
+        queries = new Node[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = StructuredQuery.parse(SyntheticData.rwsdmQuery(terms[i]));
+        }
+        queryParams = Parameters.instance();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        retrieval.close();
+    }
+
+    @Benchmark
+    public Node rewrite() throws Exception {
+        return traversal.afterNode(query(), queryParams);
+    }
+
+    @Benchmark
+    public Node transform() throws Exception {
+        return retrieval.transformQuery(query().clone(), queryParams);
+    }
+
+    private Node query() {
+        Node query = queries[next];
+        next = (next + 1) % QUERIES;
+        return query;
+    }
+
+    private static String feature(String name, String type, double lambda, int order) {
+        return String.format("{\"name\" : \"%s\", \"type\" : \"%s\", \"lambda\" : %s, "
+                        + "\"unigram\" : %b, \"bigram\" : %b, \"trigram\" : %b}",
+                name, type, lambda, order == 1, order == 2, order == 3);
+    }
+}
@@ -0,0 +1,137 @@
+package real_wsdm.bench;
+
+import org.lemurproject.galago.core.tools.App;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic synthetic data for the benchmarks : a small Galago index and
+ * n-gram tables over the same Zipf distributed vocabulary.
+ * <p>
+ * Everything is generated once under "target/bench-data" (or the directory of
+ * the "rwsdm.bench.data" system property) and reused by later runs.
+ *
+ * @author fsqcds
+ */
+public class SyntheticData {
+    public static final int VOCABULARY = 20000;
+    public static final int DOCUMENTS = 20000;
+    public static final int DOCUMENT_LENGTH = 200;
+    private static final long SEED = 42;
+
+    private static final Path ROOT = Paths.get(System.getProperty("rwsdm.bench.data", "target/bench-data"));
+    private static final double[] cumulative = zipf(VOCABULARY, 1.0);
+
+    /**
+     * Terms end with digits, so that the Krovetz stemmer leaves them alone.
+     */
+    public static String term(int rank) {
+        return "t" + rank;
+    }
+
+    /**
+     * @return rank of a term drawn from the Zipf distribution
+     */
+    public static int draw(Random random) {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(VOCABULARY - 1, rank < 0 ? -rank - 1 : rank);
+    }
+
+    /**
+     * @return count queries of length terms each, the same ones on every call
+     */
+    public static String[][] queries(int count, int length) {
+        Random random = new Random(SEED + length);
+        String[][] queries = new String[count][length];
+        for (String[] query : queries) {
+            for (int i = 0; i < length; i++) {
+                query[i] = term(draw(random));
+            }
+        }
+        return queries;
+    }
+
+    public static String rwsdmQuery(String[] terms) {
+        return "#rwsdm(" + String.join(" ", terms) + ")";
+    }
+
+    /**
+     * @return path of the index, built on first use
+     */
+    public static synchronized String index() throws Exception {
+        Path index = ROOT.resolve("index");
+        if (Files.exists(index.resolve("corpus"))) {
+            return index.toString();
+        }
+        Path corpus = ROOT.resolve("corpus.trectext");
+        Files.createDirectories(ROOT);
+        Random random = new Random(SEED);
+        try (Writer out = Files.newBufferedWriter(corpus, StandardCharsets.UTF_8)) {
+            for (int d = 0; d < DOCUMENTS; d++) {
+                out.write("<DOC>\n<DOCNO>doc-" + d + "</DOCNO>\n<TEXT>\n");
+                for (int i = 0; i < DOCUMENT_LENGTH; i++) {
+                    out.write(term(draw(random)));
+                    out.write(i % 20 == 19 ? '\n' : ' ');
+                }
+                out.write("</TEXT>\n</DOC>\n");
+            }
+        }
+        App.run(new String[]{"build", "--inputPath=" + corpus, "--indexPath=" + index}, new PrintStream(System.err));
+        return index.toString();
+    }
+
+    /**
+     * @return path of a TSV table with (up to) entries unigrams, bigrams and
+     * trigrams each, written on first use
+     */
+    public static synchronized String ngrams(int entries) throws IOException {
+        Path tsv = ROOT.resolve(String.format("ngrams-%d.tsv", entries));
+        if (Files.exists(tsv)) {
+            return tsv.toString();
+        }
+        Files.createDirectories(ROOT);
+        Path tmp = ROOT.resolve(tsv.getFileName() + ".tmp");
+        Random random = new Random(SEED + entries);
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (int order = 1; order <= 3; order++) {
+                int count = order == 1 ? Math.min(entries, VOCABULARY) : entries;
+                for (int e = 0; e < count; e++) {
+                    for (int i = 0; i < order; i++) {
+                        if (i > 0) {
+                            out.write(' ');
+                        }
+                        out.write(term(order == 1 ? e : draw(random)));
+                    }
+                    out.write('\t');
+                    out.write(Integer.toString(1 + random.nextInt(100000)));
+                    out.write('\n');
+                }
+            }
+        }
+        Files.move(tmp, tsv, StandardCopyOption.REPLACE_EXISTING);
+        return tsv.toString();
+    }
+
+    private static double[] zipf(int n, double s) {
+        double[] c = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            c[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            c[i] /= sum;
+        }
+        return c;
+    }
+}
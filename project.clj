@@ -11,5 +11,10 @@
                  [org.lemurproject.galago/contrib "3.7-SNAPSHOT"]]
   :main ^:skip-aot real-wsdm.core
   :target-path "target/%s"
-  :profiles {:uberjar {:aot :all}}
+  :profiles {:uberjar {:aot :all}
+             ;; JMH benchmarks of the traversal hot paths, see README
+             :bench {:java-source-paths ["bench/java"]
+                     :dependencies [[org.openjdk.jmh/jmh-core "1.21"]
+                                    [org.openjdk.jmh/jmh-generator-annprocess "1.21"]]}}
+  :aliases {"bench" ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main"]}
   :jvm-opts ["-Xmx7g"])
@@ -6,24 +6,44 @@
   (:import org.lemurproject.galago.utility.Parameters
            org.lemurproject.galago.contrib.learning.LearnQueryParameters
            java.util.Arrays
-           java.io.PrintStream
-           org.lemurproject.galago.core.tools.App
+           java.io.Writer
+           java.io.File
+           clojure.lang.PersistentQueue
+           org.lemurproject.galago.core.retrieval.RetrievalFactory
+           org.lemurproject.galago.core.retrieval.ScoredDocument
+           org.lemurproject.galago.core.retrieval.query.StructuredQuery
+           java.util.concurrent.ExecutorService
+           java.util.concurrent.Executors
+           java.util.Random
+           java.util.concurrent.Future
+           java.util.concurrent.LinkedBlockingQueue
+           java.util.concurrent.ThreadFactory
+           java.util.concurrent.ThreadPoolExecutor
+           java.util.concurrent.TimeUnit
            org.lemurproject.galago.core.parse.Document
            org.lemurproject.galago.core.parse.TagTokenizer
-           org.lemurproject.galago.core.parse.stem.KrovetzStemmer))
+           org.lemurproject.galago.core.parse.stem.KrovetzStemmer
+           real_wsdm.PhraseStatisticsSidecar))
+
+;; tokenizers and stemmers keep state between calls : one of each per thread
+(def ^:private ^ThreadLocal tokenizers
+  (proxy [ThreadLocal] []
+    (initialValue [] (TagTokenizer.))))
+
+(def ^:private ^ThreadLocal stemmers
+  (proxy [ThreadLocal] []
+    (initialValue [] (KrovetzStemmer.))))
 
 (defn tokenize
   [text]
-  (let [tokenizer (TagTokenizer.)
-        document (Document.)]
+  (let [document (Document.)]
     (set! (.text document) text)
-    (.process tokenizer document)
+    (.process ^TagTokenizer (.get tokenizers) document)
     (vec (.terms document))))
 
 (defn stem
   [token]
-  (let [stemmer (KrovetzStemmer.)]
-    (.stem stemmer token)))
+  (.stem ^KrovetzStemmer (.get stemmers) token))
 
 (defn galago-query-operator
   [operator text]
@@ -31,15 +51,63 @@
 
 (def wsdm-traversal (partial galago-query-operator "rwsdm"))
 
+(defn read-topics
+  "lazy seq of the topics ({:number :text}) of a reader over a topics file
+  (<DOC number> text lines </DOC>), read as they are consumed"
+  [reader]
+  (letfn [(topics [lines]
+            (lazy-seq
+              (when-let [[header & lines] (seq (drop-while #(not (re-find #"^\s*<DOC \d+>" %)) lines))]
+                (let [[_ number] (re-find #"<DOC (\d+)>" header)
+                      [text more] (split-with #(not= "</DOC>" (str/trim %)) lines)]
+                  (cons {:number number
+                         :text   (str/trim (str/join " " text))}
+                        (topics (rest more)))))))]
+    (topics (line-seq reader))))
+
 (defn eval-topics
   [queries-file]
-  (map
-    #(let [[_ number text] (re-matches #"(?s)<DOC (\d+)>\n(.*)" (str/trim %))]
-      {:number number
-       :text   (str/replace text #"\n" " ")})
-    (-> queries-file
-        slurp
-        (str/split #"\n</DOC>\n"))))
+  (with-open [reader (io/reader queries-file)]
+    (doall (read-topics reader))))
+
+(defn- expansion-pool
+  "fixed pool of daemon threads that exit when idle : a consumer that stops
+  reading the expanded topics early must not keep the jvm running"
+  [threads]
+  (doto (ThreadPoolExecutor. (int threads) (int threads) 10 TimeUnit/SECONDS (LinkedBlockingQueue.)
+                             (reify ThreadFactory
+                               (newThread [_ runnable]
+                                 (doto (Thread. ^Runnable runnable "rwsdm-expand-topics")
+                                   (.setDaemon true)))))
+    (.allowCoreThreadTimeOut true)))
+
+(defn expand-topics
+  "lazily applies query-expansion-function to the text of the topics on
+  threads threads, in topic order, at most 2 * threads topics ahead of the
+  consumer"
+  [threads query-expansion-function topics]
+  (lazy-seq
+    (let [pool (expansion-pool threads)
+          submit (fn [topic]
+                   (let [^Callable task #(update-in topic [:text] query-expansion-function)]
+                     (.submit pool task)))
+          step (fn step [in-flight topics]
+                 (lazy-seq
+                   (if-let [result (peek in-flight)]
+                     (let [expanded (try
+                                      (.get ^Future result)
+                                      (catch Exception x
+                                        (doseq [pending in-flight]
+                                          (.cancel ^Future pending false))
+                                        (.shutdown pool)
+                                        (throw x)))]
+                       (cons expanded (step (if-let [[topic] (seq topics)]
+                                              (conj (pop in-flight) (submit topic))
+                                              (pop in-flight))
+                                            (rest topics))))
+                     (.shutdown pool))))]
+      (step (into PersistentQueue/EMPTY (map submit (take (* 2 threads) topics)))
+            (drop (* 2 threads) topics)))))
 
 (defn eval-topics-expanded-json
   [query-expansion-function queries-file]
@@ -54,38 +122,190 @@
       json/write-str
       str))
 
-(defn queries-json-tmp-file
-  "create temprorary file with queries and return it"
-  [& args]
-  (let [queries-json-file (java.io.File/createTempFile "queries" ".json")]
-    (spit queries-json-file (apply queries-json args))
-    queries-json-file))
-
 (defn queries-json-print
   "make queries file with required filename"
   [queries-file]
   (println (queries-json wsdm-traversal queries-file)))
-;
-(defn batch-search
-  [print-stream query-expansion-function index-path queries-file]
-  (let [queries-json-file (queries-json-tmp-file query-expansion-function
-                                                 queries-file)]
-    (App/run (into-array ["batch-search"
-                          (str "--index=" index-path)
-                          (str queries-json-file)
-                          (-> "traversal-config.json" io/resource io/file str)])
-             print-stream)
-    (.delete queries-json-file)))
-
-(defn batch-search-tmp-file
-  [& args]
-  (let [search-results (java.io.File/createTempFile "search-results" ".json")]
-    (apply batch-search (PrintStream. search-results) args)
-    search-results))
+
+(defn retrieval
+  "in-process retrieval over index with rwsdm traversal registered"
+  ([index-path]
+   (retrieval index-path (Parameters/instance)))
+  ([index-path parameters]
+   (RetrievalFactory/instance
+     (doto (-> "traversal-config.json" io/resource io/file str Parameters/parseFile)
+       (.copyFrom parameters)
+       (.set "index" index-path)))))
+
+(defn phrase-statistics
+  "precomputes the #od:1 statistics of the bigrams and trigrams of the topics
+  of queries-file into a sidecar for the rwsdmPhraseStatistics parameter"
+  [index-path queries-file sidecar-path & {:keys [threads]
+                                           :or   {threads (.availableProcessors (Runtime/getRuntime))}}]
+  (let [candidates (File/createTempFile "rwsdm-phrases" ".txt")]
+    (try
+      (spit candidates (str/join "\n" (map :text (eval-topics queries-file))))
+      (PhraseStatisticsSidecar/build index-path (str candidates) sidecar-path (int threads) nil)
+      (finally
+        (.delete candidates)))))
+
+(defn search
+  "run one query against retrieval and return its scored documents, lambdas
+  ({feature-name value}) override the rwsdm feature weights of the query"
+  ([retrieval number text requested]
+   (search retrieval number text requested {}))
+  ([retrieval number text requested lambdas]
+   (let [query-parameters (doto (Parameters/instance)
+                            (.set "number" (str number))
+                            (.set "requested" (long requested)))
+         _ (doseq [[feature-name lambda] lambdas]
+             (.set query-parameters ^String feature-name (double lambda)))
+         transformed (.transformQuery retrieval (StructuredQuery/parse text) query-parameters)]
+     (.scoredDocuments (.executeQuery retrieval transformed query-parameters)))))
+
+(defn search-pipeline
+  "runs topics ({:number :text}, text already expanded) against the shared
+  retrieval on threads threads and reduces their ranked lists in topic order
+  with (f acc number scored-documents). At most 2 * threads topics are in
+  flight, so topics may be a lazy seq of any length; nothing goes to disk.
+  f may return (reduced acc) to stop early, queued topics are cancelled."
+  ([retrieval threads requested f init topics]
+   (search-pipeline retrieval threads requested {} f init topics))
+  ([retrieval threads requested lambdas f init topics]
+   (let [pool (Executors/newFixedThreadPool threads)
+         submit (fn [{:keys [number text]}]
+                  (let [^Callable task #(search retrieval number text requested lambdas)]
+                    [number (.submit pool task)]))
+         pending (atom PersistentQueue/EMPTY)]
+     (try
+       (loop [acc init
+              in-flight (into PersistentQueue/EMPTY (map submit (take (* 2 threads) topics)))
+              topics (drop (* 2 threads) topics)]
+         (reset! pending in-flight)
+         (if-let [[number result] (peek in-flight)]
+           (let [acc (f acc number (.get ^Future result))]
+             (if (reduced? acc)
+               @acc
+               (recur acc
+                      (if-let [[topic] (seq topics)]
+                        (conj (pop in-flight) (submit topic))
+                        (pop in-flight))
+                      (rest topics))))
+           acc))
+       (finally
+         ; topics not started yet are dropped, running searches finish
+         ; undisturbed : an interrupt can leave index readers unusable
+         (doseq [[_ result] @pending]
+           (.cancel ^Future result false))
+         (.shutdown pool))))))
+
+(defn trec-writer
+  "search-pipeline reducing function that writes the ranked lists in TREC format"
+  [^Writer writer]
+  (fn [acc number documents]
+    (doseq [document documents]
+      (.write writer (str (.toTRECformat ^ScoredDocument document number) "\n")))
+    (.flush writer)
+    acc))
+
+(defn read-judgments
+  "qrels file (number iteration document relevance) -> {number #{relevant
+  document}}. Like galago's QuerySetJudgments of positive judgments, a
+  document is relevant at any relevance > 0 and topics without relevant
+  documents are left out : eval skips them instead of averaging in AP 0"
+  [judgements-filepath]
+  (with-open [reader (io/reader judgements-filepath)]
+    (reduce (fn [judgments line]
+              (let [[number _ document relevance] (str/split (str/trim line) #"\s+")]
+                (if (and relevance (pos? (Long/parseLong relevance)))
+                  (update-in judgments [number] (fnil conj #{}) document)
+                  judgments)))
+            {}
+            (remove str/blank? (line-seq reader)))))
+
+(def ^:private judgments-cache (atom {}))
+
+(defn judgments
+  "read-judgments, kept in memory until the qrels file changes"
+  [judgements-filepath]
+  (let [modified (.lastModified (io/file judgements-filepath))
+        [cached-modified cached] (get @judgments-cache judgements-filepath)]
+    (if (and cached (= modified cached-modified))
+      cached
+      (let [loaded (read-judgments judgements-filepath)]
+        (swap! judgments-cache assoc judgements-filepath [modified loaded])
+        loaded))))
+
+(defn average-precision
+  "average precision of a ranked list of scored documents, as galago's
+  AveragePrecision : precision at every relevant document found, over the
+  number of relevant documents"
+  [relevant documents]
+  (if (empty? relevant)
+    0.0
+    (loop [[document & more] documents
+           rank 1
+           found 0
+           precision-sum 0.0]
+      (if document
+        (if (contains? relevant (.-documentName ^ScoredDocument document))
+          (recur more (inc rank) (inc found) (+ precision-sum (/ (double (inc found)) rank)))
+          (recur more (inc rank) found precision-sum))
+        (/ precision-sum (count relevant))))))
+
+(defn average-precisions
+  "search-pipeline reducing function : {number average-precision} of the judged topics"
+  [judgments]
+  (fn [acc number documents]
+    (if-let [relevant (get judgments number)]
+      (assoc acc number (average-precision relevant documents))
+      acc)))
+
+(defn incremental-map
+  "search-pipeline reducing function over {:sum :evaluated} : AP of every
+  judged topic is added as its ranked list arrives. judged is the number of
+  judged topics of the run; with stop-below the run stops as soon as the MAP
+  cannot reach stop-below any more (every remaining topic at AP 1), and
+  :stopped holds that upper bound"
+  [judgments judged stop-below]
+  (fn [{:keys [sum evaluated] :as acc} number documents]
+    (if-let [relevant (get judgments number)]
+      (let [sum (+ sum (average-precision relevant documents))
+            evaluated (inc evaluated)
+            bound (/ (+ sum (- judged evaluated)) judged)
+            acc (assoc acc :sum sum :evaluated evaluated)]
+        (if (and stop-below (< bound stop-below))
+          (reduced (assoc acc :stopped bound))
+          acc))
+      acc)))
+
+(defn topics-map
+  "MAP of the judged topics (searched with the lambdas overrides) on an open
+  retrieval, for sweeps that keep the retrieval, judgments and topics
+  loaded. With stop-below, a run that cannot reach it stops early and
+  returns its upper bound (< stop-below)"
+  [retrieval threads judgments topics lambdas & {:keys [stop-below]}]
+  (let [judged (count (filter #(contains? judgments (:number %)) topics))
+        {:keys [sum evaluated stopped]} (search-pipeline retrieval threads 1000 lambdas
+                                                         (incremental-map judgments judged stop-below)
+                                                         {:sum 0.0 :evaluated 0} topics)]
+    (cond
+      stopped stopped
+      (zero? evaluated) 0.0
+      :else (/ sum evaluated))))
+
+(defn batch-search-parallel
+  "runs the topics of queries-file in process by threads threads against one
+  shared retrieval and writes their ranked lists in TREC format to *out*"
+  [threads query-expansion-function index-path queries-file]
+  (with-open [retrieval (retrieval index-path)
+              reader (io/reader queries-file)]
+    (search-pipeline retrieval threads 1000 (trec-writer *out*) nil
+                     (expand-topics threads query-expansion-function (read-topics reader)))))
 
 (defn batch-search-print
   [index-path queries-file]
-  (batch-search System/out wsdm-traversal index-path queries-file))
+  (batch-search-parallel (.availableProcessors (Runtime/getRuntime)) wsdm-traversal index-path queries-file))
 
 (defn features-config
   [wiki-path wiki-titles-path]
@@ -227,6 +447,7 @@
   [index-path queries-file judgements-filepath wiki-path wiki-titles-path]
   (let [parameters (doto (Parameters/instance)
                      ;(.set "verboseRWSDM" true)
+                     (.set "rwsdmFeatureVectorCache" true)
                      (.set "index" index-path)
                      (.set "qrels" judgements-filepath)
                      (.copyFrom (Parameters/parseString (queries-json wsdm-traversal queries-file)))
@@ -236,17 +457,144 @@
                      (.copyFrom (-> "traversal-config.json" io/resource io/file str Parameters/parseFile)))]
     (.run (LearnQueryParameters.) parameters System/out)))
 
+;; parallel coordinate ascent : the candidate values of a coordinate are
+;; probed at once (every candidate x topic search is one task of a shared
+;; worker pool), several restarts run at once on the same retrieval, and the
+;; best restart is chosen deterministically (best MAP, then lowest restart).
+
+(defn- probe-maps
+  "mean average precision of the judged topics for every lambda vector of
+  probes; the searches of all the probes are submitted to pool at once, and
+  every MAP is summed in topic order. The futures not read yet are kept in
+  pending, for the learner to cancel"
+  [retrieval ^ExecutorService pool pending judgments topics names probes]
+  (let [judged (filter #(contains? judgments (:number %)) topics)
+        submit (fn [^Callable task]
+                 (let [future (.submit pool task)]
+                   (swap! pending conj future)
+                   future))
+        futures (doall (for [lambdas probes]
+                         (let [weights (zipmap names lambdas)]
+                           (doall (for [{:keys [number text]} judged]
+                                    (submit #(average-precision
+                                              (get judgments number)
+                                              (search retrieval number text 1000 weights))))))))]
+    (try
+      (mapv (fn [topic-futures]
+              (if (empty? topic-futures)
+                0.0
+                (/ (reduce + (map #(.get ^Future %) topic-futures)) (count topic-futures))))
+            futures)
+      (finally
+        (swap! pending #(reduce disj % (apply concat futures)))))))
+
+(defn- normalize-lambdas
+  "scales lambdas to an absolute sum of 1 (the ranking does not change)"
+  [lambdas]
+  (let [total (reduce + (map #(Math/abs (double %)) lambdas))]
+    (if (zero? total)
+      lambdas
+      (mapv #(/ % total) lambdas))))
+
+(defn- initial-lambdas
+  "restart 0 starts from equal weights, the others from random weights of seed + restart"
+  [n seed restart]
+  (normalize-lambdas
+    (if (zero? restart)
+      (vec (repeat n 1.0))
+      (let [random (Random. (+ seed restart))]
+        (vec (repeatedly n #(.nextDouble random)))))))
+
+(defn- coordinate-ascent
+  "moves one coordinate at a time to the best of current +/- (1, 2, 4) * step
+  (all probed at once by evaluate) while the MAP improves, halves step after a
+  sweep without improvement, until step < min-step or max-iterations sweeps"
+  [evaluate lambdas {:keys [step min-step max-iterations]}]
+  (loop [lambdas lambdas
+         score (first (evaluate [lambdas]))
+         step step
+         iteration 0]
+    (if (or (< step min-step) (>= iteration max-iterations))
+      {:lambdas lambdas :map score}
+      (let [[lambdas' score'] (reduce
+                                (fn [[lambdas score] i]
+                                  (let [probes (vec (for [k [1 2 4]
+                                                          sign [-1 1]]
+                                                      (normalize-lambdas (update-in lambdas [i] + (* sign k step)))))
+                                        scores (evaluate probes)
+                                        ; strictly better only : the first (smallest) move wins ties
+                                        best (reduce #(if (> (scores %2) (scores %1)) %2 %1) 0 (range (count probes)))]
+                                    (if (> (scores best) score)
+                                      [(probes best) (scores best)]
+                                      [lambdas score])))
+                                [lambdas score]
+                                (range (count lambdas)))]
+        (if (> score' score)
+          (recur lambdas' score' step (inc iteration))
+          (recur lambdas score (/ step 2) (inc iteration)))))))
+
+(defn learn-parallel
+  "learns the learnableParameters of learnable-config by parallel
+  multi-restart coordinate ascent on MAP, searching in process on one shared
+  retrieval with threads worker threads (no run files). Returns
+  {:parameters {name lambda} :map best-map :restart restart}"
+  [index-path queries-file judgements-filepath wiki-path wiki-titles-path
+   & {:keys [threads restarts seed step min-step max-iterations]
+      :or   {threads        (.availableProcessors (Runtime/getRuntime))
+             restarts       4
+             seed           0
+             step           0.1
+             min-step       0.005
+             max-iterations 100}}]
+  (let [names (mapv :name (:learnableParameters learnable-config))
+        judgments (judgments judgements-filepath)
+        topics (vec (expand-topics threads wsdm-traversal (eval-topics queries-file)))
+        parameters (doto (Parameters/instance)
+                     (.set "rwsdmFeatureVectorCache" true)
+                     (.copyFrom (Parameters/parseString (json/write-str (features-config wiki-path wiki-titles-path)))))
+        options {:step step :min-step min-step :max-iterations max-iterations}
+        pool (Executors/newFixedThreadPool threads)
+        restart-pool (Executors/newFixedThreadPool restarts)
+        pending (atom #{})
+        runs (atom [])]
+    (with-open [retrieval (retrieval index-path parameters)]
+      (try
+        (let [evaluate (partial probe-maps retrieval pool pending judgments topics names)
+              _ (reset! runs (mapv (fn [restart]
+                                     (let [^Callable task #(assoc (coordinate-ascent evaluate (initial-lambdas (count names) seed restart) options)
+                                                             :restart restart)]
+                                       (.submit restart-pool task)))
+                                   (range restarts)))
+              results (mapv #(.get ^Future %) @runs)
+              best (reduce #(if (> (:map %2) (:map %1)) %2 %1) results)]
+          (doseq [{restart :restart score :map lambdas :lambdas} results]
+            (println (format "restart %d : MAP %.4f %s" restart score (zipmap names lambdas))))
+          {:parameters (zipmap names (:lambdas best))
+           :map        (:map best)
+           :restart    (:restart best)})
+        (finally
+          ; like search-pipeline : queued searches are dropped, running ones
+          ; finish undisturbed before the retrieval is closed. A restart still
+          ; running stops at its next probe, which the shut down pool rejects
+          (.shutdown pool)
+          (.shutdown restart-pool)
+          (doseq [future (concat @runs @pending)]
+            (.cancel ^Future future false))
+          (.awaitTermination restart-pool Long/MAX_VALUE TimeUnit/MILLISECONDS)
+          (.awaitTermination pool Long/MAX_VALUE TimeUnit/MILLISECONDS))))))
+
 (defn mean-ap
-  [query-expansion-operator index-path queries-file judgements-filepath]
-  (let [query-expansion-function (partial galago-query-operator query-expansion-operator)
-        batch-search-results (batch-search-tmp-file query-expansion-function
-                                                    index-path
-                                                    queries-file)
-        average-precision (org.lemurproject.galago.core.eval.metric.AveragePrecision. "map")
-        mean-average-precision (org.lemurproject.galago.core.eval.aggregate.Mean. "map" average-precision)
-        query-set-results (org.lemurproject.galago.core.eval.QuerySetResults. (str batch-search-results))
-        query-set-judgements (org.lemurproject.galago.core.eval.QuerySetJudgments. judgements-filepath false true)]
-    (.evaluate mean-average-precision query-set-results query-set-judgements)))
+  "mean average precision over the judged topics, the topics are searched and
+  evaluated in process (no run file), the judgments are read once per qrels
+  file. See topics-map for stop-below"
+  [query-expansion-operator index-path queries-file judgements-filepath & {:keys [stop-below]}]
+  (let [threads (.availableProcessors (Runtime/getRuntime))
+        query-expansion-function (partial galago-query-operator query-expansion-operator)
+        ; topics-map counts the judged topics first
+        topics (vec (expand-topics threads query-expansion-function (eval-topics queries-file)))]
+    (with-open [retrieval (retrieval index-path)]
+      (topics-map retrieval threads (judgments judgements-filepath) topics {}
+                  :stop-below stop-below))))
 
 (defn print-map
   [& args]
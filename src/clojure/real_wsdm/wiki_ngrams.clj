@@ -1,34 +1,17 @@
 (ns real-wsdm.wiki-ngrams
   (:require [clojure.java.io :as io]
             [real-wsdm.galago-util :refer :all]
-            [clojure.string :as str]))
-
-(defn extract-ngrams
-  [tokens]
-  (concat
-    (map list tokens)
-    (partition 2 1 tokens)
-    (partition 3 1 tokens)))
+            [clojure.string :as str])
+  (:import real_wsdm.MappedNGramTable
+           real_wsdm.SketchNGramTable
+           real_wsdm.NGramCounter
+           java.nio.file.Paths))
 
 (defn add-ngram
   [ngram-count ngram]
   (let [old-value (get ngram-count ngram 0)]
     (assoc ngram-count ngram (inc old-value))))
 
-(defn add-ngrams
-  [ngram-count ngrams]
-  (reduce
-    add-ngram
-    ngram-count
-    ngrams))
-
-(defn ngram-count
-  [lines]
-  (reduce
-    add-ngrams
-    {}
-    (map #(->> % tokenize (map stem) extract-ngrams) lines)))
-
 (defn titles
   [lines]
   (reduce
@@ -36,14 +19,39 @@
     {}
     (filter #(<= (count %) 3) (map #(->> % tokenize (map stem)) lines))))
 
+(defn count-ngrams
+  "counts the stemmed 1-, 2- and 3-grams of every line of text-path on all
+  cores, spilling to tmp-dir, and writes the ones seen at least min-count
+  times to tsv-path"
+  [text-path tsv-path & {:keys [threads min-count max-entries tmp-dir]
+                         :or   {threads     (.availableProcessors (Runtime/getRuntime))
+                                min-count   1
+                                max-entries (bit-shift-left 32 20)
+                                tmp-dir     (System/getProperty "java.io.tmpdir")}}]
+  (.count (NGramCounter. threads max-entries min-count (Paths/get tmp-dir (make-array String 0)))
+          text-path
+          tsv-path))
+
 (defn extract-ngrams
-  [wiki-titles-path]
-  (with-open [rdr (io/reader wiki-titles-path)]
-    (doseq [[ngram count] (ngram-count (line-seq rdr))]
-      (println (str (str/join " " ngram) "\t" count)))))
+  [wiki-path & {:keys [min-count] :or {min-count 1}}]
+  (.count (NGramCounter. (.availableProcessors (Runtime/getRuntime)) (int min-count))
+          wiki-path
+          *out*))
 
 (defn extract-titles
   [wiki-titles-path]
   (with-open [rdr (io/reader wiki-titles-path)]
     (doseq [[ngram _] (titles (line-seq rdr))]
       (println (str (str/join " " ngram) "\t" 100)))))
+
+
+(defn ngrams-lexicon
+  "convert tsv output of extract-ngrams/extract-titles into memory-mapped binary lexicon"
+  [tsv-path lexicon-path]
+  (MappedNGramTable/convert tsv-path lexicon-path))
+
+(defn ngrams-sketch
+  "convert tsv output of extract-ngrams/extract-titles into an approximate
+  table (see SketchNGramTable) whose counts are within error of the real ones"
+  [tsv-path sketch-path & {:keys [error] :or {error 0.01}}]
+  (SketchNGramTable/build tsv-path sketch-path (double error)))
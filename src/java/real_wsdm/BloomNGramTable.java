@@ -0,0 +1,131 @@
+package real_wsdm;
+
+import java.util.logging.Logger;
+
+/**
+ * Bloom filter in front of an exact n-gram table : most bigrams and trigrams
+ * of verbose queries are not in the wiki tables, and the filter answers them
+ * from a single cache line instead of probing the table (or faulting in a
+ * page of a mapped lexicon).
+ * <p>
+ * The filter is blocked : the bits of an n-gram all fall in one 512 bit
+ * block. With "rwsdmBloomBitsPerEntry" bits per n-gram (default 10) about 1%
+ * of the absent n-grams still reach the table. Unigrams are not filtered,
+ * their lookup is an array access.
+ * <p>
+ * The filter is built when the table is loaded, from the n-grams listed by
+ * {@link HashNGramTable} and {@link MappedNGramTable} (forEachNGram).
+ *
+ * @author fsqcds
+ */
+public class BloomNGramTable implements NGramTable {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+    private static final int BLOCK_LONGS = 8;
+    private static final int BLOCK_BITS = BLOCK_LONGS * 64;
+    private static final long MAX_BLOCKS = 1L << 27;
+
+    /**
+     * Receives the bigrams and trigrams of a table, ids[0 .. order - 1].
+     */
+    interface Visitor {
+        void visit(int[] ids, int order);
+    }
+
+    private final NGramTable table;
+    private final long[] bits;
+    private final int blockMask;
+    private final int hashes;
+
+    private BloomNGramTable(NGramTable table, long expected, int bitsPerEntry) {
+        this.table = table;
+        long needed = Math.max(1, (expected * bitsPerEntry + BLOCK_BITS - 1) / BLOCK_BITS);
+        long blocks = Math.min(Long.highestOneBit(needed * 2 - 1), MAX_BLOCKS);
+        this.bits = new long[(int) blocks * BLOCK_LONGS];
+        this.blockMask = (int) blocks - 1;
+        this.hashes = (int) Math.max(1, Math.min(16, Math.round(bitsPerEntry * Math.log(2))));
+    }
+
+    /**
+     * @return the table behind a Bloom filter of its bigrams and trigrams, or
+     * the table itself when its n-grams can not be listed (sketches)
+     */
+    public static NGramTable wrap(NGramTable table, String path, int bitsPerEntry) {
+        long start = System.nanoTime();
+        BloomNGramTable filtered = new BloomNGramTable(table, table.size(), bitsPerEntry);
+        long[] added = new long[1];
+        Visitor add = (ids, order) -> {
+            filtered.add(NGramTable.hash(ids, 0, order));
+            added[0]++;
+        };
+        if (table instanceof HashNGramTable) {
+            ((HashNGramTable) table).forEachNGram(add);
+        } else if (table instanceof MappedNGramTable) {
+            ((MappedNGramTable) table).forEachNGram(add);
+        } else {
+            return table;
+        }
+        logger.info(String.format("Built Bloom filter of %d n-grams of %s (%.1f MB, %d hashes) in %.2fs",
+                added[0], path, filtered.bits.length * 8.0 / (1 << 20), filtered.hashes,
+                (System.nanoTime() - start) / 1e9));
+        return filtered;
+    }
+
+    @Override
+    public int termId(String stemmedTerm) {
+        return table.termId(stemmedTerm);
+    }
+
+    @Override
+    public int get(int[] ids, int offset, int order) {
+        if (order > 1) {
+            for (int i = offset; i < offset + order; i++) {
+                if (ids[i] < 0) {
+                    return MISSING;
+                }
+            }
+            if (!mightContain(NGramTable.hash(ids, offset, order))) {
+                return MISSING;
+            }
+        }
+        return table.get(ids, offset, order);
+    }
+
+    @Override
+    public long size() {
+        return table.size();
+    }
+
+    @Override
+    public String toString() {
+        return table.toString();
+    }
+
+    private void add(long hash) {
+        int block = block(hash);
+        long g = LongIntMap.mix(hash);
+        int h1 = (int) g;
+        int h2 = (int) (g >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            bits[block + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long hash) {
+        int block = block(hash);
+        long g = LongIntMap.mix(hash);
+        int h1 = (int) g;
+        int h2 = (int) (g >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            if ((bits[block + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int block(long hash) {
+        return ((int) (hash >>> 32) & blockMask) * BLOCK_LONGS;
+    }
+}
@@ -0,0 +1,98 @@
+package real_wsdm;
+
+import org.lemurproject.galago.utility.Parameters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drops low impact proximity clauses (bigrams and trigrams) of a rwsdm node
+ * before the combine is built : long queries otherwise score up to
+ * 4 * (n - 1) window nodes, most of them with tiny weights.
+ * <p>
+ * Query (or global) parameters, applied in this order: <br>
+ * rwsdmPruneThreshold : drop clauses weighted below the threshold <br>
+ * rwsdmPruneTopK : keep the k best weighted clauses of each order <br>
+ * rwsdmClauseBudget : keep the best weighted clauses of all orders up to the budget <br>
+ * Unigrams are never dropped, ties keep the leftmost clause.
+ *
+ * @author fsqcds
+ */
+final class ClausePruner {
+    private final double threshold;
+    private final int topK;
+    private final int budget;
+
+    private ClausePruner(double threshold, int topK, int budget) {
+        this.threshold = threshold;
+        this.topK = topK;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the pruner configured for the query, or null if pruning is off
+     */
+    static ClausePruner create(Parameters globalParams, Parameters queryParams) {
+        double threshold = queryParams.get("rwsdmPruneThreshold", globalParams.get("rwsdmPruneThreshold", Double.NEGATIVE_INFINITY));
+        long topK = queryParams.get("rwsdmPruneTopK", globalParams.get("rwsdmPruneTopK", 0L));
+        long budget = queryParams.get("rwsdmClauseBudget", globalParams.get("rwsdmClauseBudget", 0L));
+        if (threshold == Double.NEGATIVE_INFINITY && topK <= 0 && budget <= 0) {
+            return null;
+        }
+        return new ClausePruner(threshold,
+                topK <= 0 ? Integer.MAX_VALUE : (int) Math.min(topK, Integer.MAX_VALUE),
+                budget <= 0 ? Integer.MAX_VALUE : (int) Math.min(budget, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param weights clause weights by order, weights[order][offset] (null for
+     *                orders without clauses)
+     * @return keep[order][offset]
+     */
+    boolean[][] keep(double[][] weights) {
+        boolean[][] keep = new boolean[weights.length][];
+        List<long[]> kept = new ArrayList<>();
+        for (int order = 0; order < weights.length; order++) {
+            if (weights[order] == null) {
+                continue;
+            }
+            keep[order] = new boolean[weights[order].length];
+            List<long[]> clauses = new ArrayList<>();
+            for (int i = 0; i < weights[order].length; i++) {
+                if (weights[order][i] >= threshold) {
+                    clauses.add(new long[]{order, i});
+                }
+            }
+            sort(clauses, weights);
+            for (int k = 0; k < Math.min(topK, clauses.size()); k++) {
+                kept.add(clauses.get(k));
+            }
+        }
+        sort(kept, weights);
+        for (int k = 0; k < Math.min(budget, kept.size()); k++) {
+            long[] clause = kept.get(k);
+            keep[(int) clause[0]][(int) clause[1]] = true;
+        }
+        return keep;
+    }
+
+    /*
+     * Best weight first, then lowest order and leftmost offset.
+     */
+    private static void sort(List<long[]> clauses, double[][] weights) {
+        clauses.sort((a, b) -> {
+            int c = Double.compare(weights[(int) b[0]][(int) b[1]], weights[(int) a[0]][(int) a[1]]);
+            if (c != 0) {
+                return c;
+            }
+            c = Long.compare(a[0], b[0]);
+            return c != 0 ? c : Long.compare(a[1], b[1]);
+        });
+    }
+
+    @Override
+    public String toString() {
+        return String.format("threshold=%s topK=%s budget=%s", threshold,
+                topK == Integer.MAX_VALUE ? "-" : topK, budget == Integer.MAX_VALUE ? "-" : budget);
+    }
+}
@@ -0,0 +1,463 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.index.stats.NodeStatistics;
+import org.lemurproject.galago.core.parse.stem.Stemmer;
+import org.lemurproject.galago.core.retrieval.query.NodeParameters;
+import org.lemurproject.galago.utility.Parameters;
+import real_wsdm.RealWSDMTraversal.RWSDMFeature;
+import real_wsdm.RealWSDMTraversal.RWSDMFeatureType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Precompiled form of the rwsdm feature lists, shared by unigrams, bigrams
+ * and trigrams.
+ * <p>
+ * For every n-gram order the features are flattened into arrays, and the
+ * features that read the same index node (e.g. logtf and logdf of the same
+ * part and group) share a statistics slot, so the node is fetched once per
+ * clause. Per rwsdm node an {@link Evaluator} resolves the lambdas once and
+ * drops the zero-lambda features, stems the query terms and maps them to the
+ * term ids of every external table once; per clause only the statistics keys
+ * are allocated.
+ * <p>
+ * For training, the engine can keep the raw feature vector of every clause it
+ * has seen (see {@link #enableVectorCache}). Feature values do not depend on
+ * the lambdas, so once a query has been rewritten, every later parameter probe
+ * only computes dot products.
+ *
+ * @author fsqcds
+ */
+public class FeatureEngine {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+    public static final int MAX_ORDER = 3;
+
+    /**
+     * Source of (cached) node statistics.
+     */
+    public interface StatisticsSource {
+        NodeStatistics get(StatisticsKey key) throws Exception;
+    }
+
+    private final Plan[] plans = new Plan[MAX_ORDER + 1];
+    private final int maxSlots;
+    // distinct external tables of all the features
+    private final List<NGramTable> tables = new ArrayList<>();
+    private volatile Map<ClauseKey, double[]> vectors;
+    private volatile long maxVectors;
+
+    public FeatureEngine(List<RWSDMFeature> uniFeatures, List<RWSDMFeature> biFeatures, List<RWSDMFeature> triFeatures) {
+        plans[1] = new Plan(1, uniFeatures, tables);
+        plans[2] = new Plan(2, biFeatures, tables);
+        plans[3] = new Plan(3, triFeatures, tables);
+        int slots = 0;
+        for (int order = 1; order <= MAX_ORDER; order++) {
+            slots = Math.max(slots, plans[order].slots);
+        }
+        this.maxSlots = slots;
+        if (!tables.isEmpty()) {
+            // cached vectors hold values of the replaced tables
+            FeatureTableReloader.addListener(this::clearVectorCache);
+        }
+    }
+
+    /**
+     * Starts keeping the raw feature vectors of the clauses, at most
+     * maxVectors of them (later clauses are computed but not kept).
+     */
+    public synchronized void enableVectorCache(long maxVectors) {
+        if (vectors == null) {
+            vectors = new ConcurrentHashMap<>();
+        }
+        this.maxVectors = maxVectors;
+    }
+
+    /**
+     * Drops the kept vectors. Evaluators created before keep filling the old
+     * cache, so their values never show up in the new one.
+     */
+    public synchronized void clearVectorCache() {
+        if (vectors != null) {
+            vectors = new ConcurrentHashMap<>();
+        }
+    }
+
+    public long vectorCacheSize() {
+        Map<ClauseKey, double[]> v = vectors;
+        return v == null ? 0 : v.size();
+    }
+
+    /**
+     * @return true if there is at least one feature for n-grams of this order
+     */
+    public boolean hasFeatures(int order) {
+        return plans[order].features.length > 0;
+    }
+
+    public RWSDMFeature[] features(int order) {
+        return plans[order].features;
+    }
+
+    /**
+     * Resolves the lambdas of one rwsdm node.
+     *
+     * @param countsPart  part assigned to unigram (counts) nodes of the query
+     * @param extentsPart part assigned to the window (extents) nodes of the query
+     */
+    public Evaluator evaluator(String index, String[] terms, NodeParameters np, Parameters queryParams, StatisticsSource source,
+                               String countsPart, String extentsPart, boolean verbose) {
+        return new Evaluator(index, terms, np, queryParams, source, countsPart, extentsPart, verbose);
+    }
+
+    /*
+     * Features of one n-gram order.
+     */
+    private static final class Plan {
+        final int order;
+        final RWSDMFeature[] features;
+        // statistics slot of each feature, -1 = feature does not use the index
+        final int[] slot;
+        // external table of each feature, -1 = not an external feature
+        final int[] table;
+        final int slots;
+        // per slot : read the "a~b" n-gram field term instead of an ordered window
+        final boolean[] slotNGram;
+        // per slot : explicit part, "" = part assigned by the query
+        final String[] slotPart;
+        final String[] slotGroup;
+
+        Plan(int order, List<RWSDMFeature> features, List<NGramTable> tables) {
+            this.order = order;
+            this.features = features.toArray(new RWSDMFeature[features.size()]);
+            this.slot = new int[this.features.length];
+            this.table = new int[this.features.length];
+
+            List<String> slotIds = new ArrayList<>();
+            List<RWSDMFeature> slotFeatures = new ArrayList<>();
+            for (int i = 0; i < this.features.length; i++) {
+                RWSDMFeature f = this.features[i];
+                table[i] = -1;
+                if (f.type == RWSDMFeatureType.EXTERNAL) {
+                    int t = tables.indexOf(f.featureValues);
+                    if (t < 0) {
+                        t = tables.size();
+                        tables.add(f.featureValues);
+                    }
+                    table[i] = t;
+                }
+                if (f.type == RWSDMFeatureType.CONST || f.type == RWSDMFeatureType.EXTERNAL) {
+                    slot[i] = -1;
+                    continue;
+                }
+                // unigram n-gram counts are the same as logtf
+                boolean ngram = order > 1 && f.type == RWSDMFeatureType.LOGNGRAMTF;
+                String id = ngram + "\t" + f.part + "\t" + f.group;
+                int s = slotIds.indexOf(id);
+                if (s < 0) {
+                    s = slotIds.size();
+                    slotIds.add(id);
+                    slotFeatures.add(f);
+                }
+                slot[i] = s;
+            }
+
+            this.slots = slotIds.size();
+            this.slotNGram = new boolean[slots];
+            this.slotPart = new String[slots];
+            this.slotGroup = new String[slots];
+            for (int s = 0; s < slots; s++) {
+                RWSDMFeature f = slotFeatures.get(s);
+                slotNGram[s] = order > 1 && f.type == RWSDMFeatureType.LOGNGRAMTF;
+                slotPart[s] = f.part;
+                slotGroup[s] = f.group;
+            }
+        }
+    }
+
+    /**
+     * Feature evaluation for the clauses of one rwsdm node.
+     */
+    public final class Evaluator {
+        private final String index;
+        private final String[] terms;
+        private String[] stemmed;
+        // per external table : the table used for this node, and the ids of the stemmed terms
+        private final NGramTable[] current = new NGramTable[tables.size()];
+        private final int[][] termIds = new int[tables.size()][];
+        private final Map<ClauseKey, double[]> cached = vectors;
+        private final RWSDMMetrics metrics = RWSDMMetrics.current();
+        private final StatisticsSource source;
+        private final String countsPart;
+        private final String extentsPart;
+        private final boolean verbose;
+        private final double[][] lambdas = new double[MAX_ORDER + 1][];
+        private final int[][] active = new int[MAX_ORDER + 1][];
+        private final int[] activeCount = new int[MAX_ORDER + 1];
+        private final NodeStatistics[] slotStats = new NodeStatistics[maxSlots];
+        private Set<StatisticsKey> unresolved = Collections.emptySet();
+
+        private Evaluator(String index, String[] terms, NodeParameters np, Parameters queryParams, StatisticsSource source,
+                          String countsPart, String extentsPart, boolean verbose) {
+            this.index = index;
+            this.terms = terms;
+            this.source = source;
+            this.countsPart = countsPart;
+            this.extentsPart = extentsPart;
+            this.verbose = verbose;
+            for (int t = 0; t < current.length; t++) {
+                current[t] = tables.get(t).current();
+            }
+            for (int order = 1; order <= MAX_ORDER; order++) {
+                RWSDMFeature[] features = plans[order].features;
+                lambdas[order] = new double[features.length];
+                active[order] = new int[features.length];
+                for (int i = 0; i < features.length; i++) {
+                    RWSDMFeature f = features[i];
+                    double lambda = np.get(f.name, queryParams.get(f.name, f.defLambda));
+                    lambdas[order][i] = lambda;
+                    // if the feature weight is 0 -- don't compute the feature
+                    // (constants cost nothing and are still logged by verboseRWSDM)
+                    if (lambda != 0.0 || f.type == RWSDMFeatureType.CONST) {
+                        active[order][activeCount[order]++] = i;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Statistics missing from this rewrite (side groups that timed out) :
+         * the features that read them do not contribute, and the vectors of
+         * their clauses are not kept in the vector cache.
+         */
+        public void exclude(Set<StatisticsKey> unresolved) {
+            this.unresolved = unresolved;
+        }
+
+        /**
+         * @return part assigned to the unigram (counts) nodes of the query
+         */
+        public String countsPart() {
+            return countsPart;
+        }
+
+        /**
+         * @return part assigned to the window (extents) nodes of the query
+         */
+        public String extentsPart() {
+            return extentsPart;
+        }
+
+        /**
+         * @return effective lambdas of the node, lambdas[order][feature] (not to be modified)
+         */
+        public double[][] lambdas() {
+            return lambdas;
+        }
+
+        /**
+         * @return weight of the n-gram terms[offset .. offset + order - 1] of the query
+         */
+        public double weight(int order, int offset) throws Exception {
+            Plan plan = plans[order];
+            double[] vector = null;
+            if (cached != null) {
+                ClauseKey key = new ClauseKey(index, countsPart, extentsPart, terms, offset, order);
+                vector = cached.get(key);
+                if (metrics != null) {
+                    metrics.vectorCache(vector != null);
+                }
+                if (vector == null) {
+                    vector = vector(plan, offset);
+                    if (cached.size() < maxVectors && resolved(plan, offset)) {
+                        cached.put(key, vector);
+                    }
+                }
+            } else {
+                Arrays.fill(slotStats, null);
+            }
+
+            double weight = 0.0;
+            for (int a = 0; a < activeCount[order]; a++) {
+                int i = active[order][a];
+                double value = vector != null ? vector[i] : value(plan, i, offset);
+                // missing values (e.g. log (0) = -Inf) do not contribute
+                if (!Double.isNaN(value)) {
+                    double lambda = lambdas[order][i];
+                    weight += lambda * value;
+                    if (verbose) {
+                        logger.info(String.format("%s -- feature:%s:%g * %g = %g",
+                                String.join(", ", Arrays.asList(terms).subList(offset, offset + order)),
+                                plan.features[i].name, lambda, value, lambda * value));
+                    }
+                }
+            }
+            return weight;
+        }
+
+        private boolean resolved(Plan plan, int offset) {
+            if (unresolved.isEmpty()) {
+                return true;
+            }
+            for (int s = 0; s < plan.slots; s++) {
+                if (unresolved.contains(key(plan, s, offset))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Lambda independent values of all the features of the clause.
+         */
+        private double[] vector(Plan plan, int offset) throws Exception {
+            Arrays.fill(slotStats, null);
+            double[] vector = new double[plan.features.length];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = value(plan, i, offset);
+            }
+            return vector;
+        }
+
+        /**
+         * Adds the statistics keys the clause terms[offset .. offset + order - 1] will need.
+         */
+        public void collectKeys(int order, int offset, Collection<StatisticsKey> keys) {
+            Plan plan = plans[order];
+            if (cached != null) {
+                if (cached.containsKey(new ClauseKey(index, countsPart, extentsPart, terms, offset, order))) {
+                    return;
+                }
+                // the whole vector is computed : all features need their statistics
+                for (int s = 0; s < plan.slots; s++) {
+                    keys.add(key(plan, s, offset));
+                }
+                return;
+            }
+            for (int a = 0; a < activeCount[order]; a++) {
+                int s = plan.slot[active[order][a]];
+                if (s >= 0) {
+                    keys.add(key(plan, s, offset));
+                }
+            }
+        }
+
+        private double value(Plan plan, int i, int offset) throws Exception {
+            if (metrics == null) {
+                return compute(plan, i, offset);
+            }
+            long start = System.nanoTime();
+            double value = compute(plan, i, offset);
+            metrics.feature(plan.features[i].type, plan.order, System.nanoTime() - start);
+            return value;
+        }
+
+        private double compute(Plan plan, int i, int offset) throws Exception {
+            RWSDMFeature f = plan.features[i];
+            switch (f.type) {
+                case CONST:
+                    return 1.0;
+
+                case EXTERNAL:
+                    int t = plan.table[i];
+                    int count = current[t].get(termIds(t), offset, plan.order);
+                    if (metrics != null) {
+                        metrics.external(plan.order, count != NGramTable.MISSING);
+                    }
+                    return count == NGramTable.MISSING ? Double.NaN : Math.log(count);
+
+                default:
+                    int s = plan.slot[i];
+                    NodeStatistics stats = slotStats[s];
+                    if (stats == null) {
+                        StatisticsKey key = key(plan, s, offset);
+                        // zero statistics for a timed out group : the feature does not contribute
+                        stats = unresolved.contains(key) ? new NodeStatistics() : source.get(key);
+                        slotStats[s] = stats;
+                    }
+                    long n = (f.type == RWSDMFeatureType.LOGDF) ? stats.nodeDocumentCount : stats.nodeFrequency;
+                    // only use the value if it occurs in the collection (log (0) = -Inf)
+                    return n != 0 ? Math.log(n) : Double.NaN;
+            }
+        }
+
+        /*
+         * Query terms are stemmed once, and mapped once per table.
+         */
+        private int[] termIds(int t) {
+            if (termIds[t] == null) {
+                if (stemmed == null) {
+                    Stemmer stemmer = RealWSDMTraversal.stemmer();
+                    stemmed = new String[terms.length];
+                    for (int i = 0; i < terms.length; i++) {
+                        stemmed[i] = stemmer.stem(terms[i]);
+                    }
+                }
+                NGramTable table = current[t];
+                int[] ids = new int[terms.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = table.termId(stemmed[i]);
+                }
+                termIds[t] = ids;
+            }
+            return termIds[t];
+        }
+
+        private StatisticsKey key(Plan plan, int s, int offset) {
+            String[] window = Arrays.copyOfRange(terms, offset, offset + plan.order);
+            if (plan.slotNGram[s]) {
+                return new StatisticsKey(index, "counts", plan.slotPart[s], plan.slotGroup[s], String.join("~", window));
+            }
+            if (plan.order == 1) {
+                String part = plan.slotPart[s].isEmpty() ? countsPart : plan.slotPart[s];
+                return new StatisticsKey(index, "counts", part, plan.slotGroup[s], window);
+            }
+            String part = plan.slotPart[s].isEmpty() ? extentsPart : plan.slotPart[s];
+            return new StatisticsKey(index, "od:1", part, plan.slotGroup[s], window);
+        }
+    }
+
+    /*
+     * Identifies a clause independently of the lambdas.
+     */
+    private static final class ClauseKey {
+        private final String index;
+        private final String countsPart;
+        private final String extentsPart;
+        private final String[] terms;
+        private final int hash;
+
+        ClauseKey(String index, String countsPart, String extentsPart, String[] terms, int offset, int order) {
+            this.index = index;
+            this.countsPart = countsPart;
+            this.extentsPart = extentsPart;
+            this.terms = Arrays.copyOfRange(terms, offset, offset + order);
+            this.hash = 31 * (31 * (31 * index.hashCode() + countsPart.hashCode()) + extentsPart.hashCode()) + Arrays.hashCode(this.terms);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClauseKey)) {
+                return false;
+            }
+            ClauseKey k = (ClauseKey) o;
+            return hash == k.hash
+                    && Arrays.equals(terms, k.terms)
+                    && countsPart.equals(k.countsPart)
+                    && extentsPart.equals(k.extentsPart)
+                    && index.equals(k.index);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package real_wsdm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the external feature tables in sync with their files.
+ * <p>
+ * Every table is loaded through {@link #watch} and handed out as a
+ * {@link ReloadableNGramTable}. Once {@link #start} has been called, a daemon
+ * thread checks the size and modification time of the files every interval;
+ * a file that changed and then stayed unchanged for one more interval (so
+ * that a file still being written is not read) is loaded in the background
+ * and swapped in. If the new file cannot be loaded the old table is kept.
+ * <p>
+ * Lexicons are mapped, so they should be replaced by writing a new file and
+ * renaming it over the old one, never rewritten in place.
+ *
+ * @author fsqcds
+ */
+public class FeatureTableReloader {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+
+    public interface Loader {
+        NGramTable load(String path) throws IOException;
+    }
+
+    // a file can be watched twice, e.g. with and without a Bloom filter
+    private static final List<Watched> watched = new CopyOnWriteArrayList<>();
+    private static final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Loads the table of the file and keeps track of it. A file that cannot be
+     * loaded gives an empty table, which is replaced once the file can be loaded.
+     */
+    public static ReloadableNGramTable watch(String path, Loader loader) {
+        long[] signature = signature(path);
+        NGramTable table;
+        try {
+            table = loader.load(path);
+        } catch (IOException x) {
+            System.err.format("IOException: %s%n", x);
+            table = new HashNGramTable();
+            signature = null;
+        }
+        ReloadableNGramTable reloadable = signature == null
+                ? new ReloadableNGramTable(path, table, -1, -1)
+                : new ReloadableNGramTable(path, table, signature[0], signature[1]);
+        watched.add(new Watched(reloadable, loader));
+        return reloadable;
+    }
+
+    /**
+     * Runs after every reload, e.g. to drop values computed from the old tables.
+     */
+    public static void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts checking the files every intervalSeconds (only the first call has an effect).
+     */
+    public static synchronized void start(long intervalSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rwsdm-reload");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(1, intervalSeconds);
+        scheduler.scheduleWithFixedDelay(FeatureTableReloader::poll, interval, interval, TimeUnit.SECONDS);
+        logger.info(String.format("Checking feature files for changes every %ds", interval));
+    }
+
+    public static synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Reloads the changed files once; called by the reload thread.
+     */
+    public static void poll() {
+        boolean reloaded = false;
+        for (Watched w : watched) {
+            reloaded |= w.poll();
+        }
+        if (reloaded) {
+            for (Runnable listener : listeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException x) {
+                    logger.warning(String.format("Reload listener failed : %s", x));
+                }
+            }
+        }
+    }
+
+    /*
+     * @return {size, modification time} of the file, null if it can not be read
+     */
+    private static long[] signature(String path) {
+        Path p = Paths.get(path);
+        try {
+            return new long[]{Files.size(p), Files.getLastModifiedTime(p).toMillis()};
+        } catch (NoSuchFileException x) {
+            return null;
+        } catch (IOException x) {
+            System.err.format("IOException: %s%n", x);
+            return null;
+        }
+    }
+
+    private static final class Watched {
+        private final ReloadableNGramTable table;
+        private final Loader loader;
+        // signature seen at the previous check, and of the last file that failed to load
+        private long[] seen;
+        private long[] failed;
+
+        Watched(ReloadableNGramTable table, Loader loader) {
+            this.table = table;
+            this.loader = loader;
+        }
+
+        /*
+         * @return true if the table was replaced
+         */
+        boolean poll() {
+            String path = table.path();
+            long[] signature = signature(path);
+            if (signature == null || table.isLoaded(signature[0], signature[1]) || Arrays.equals(signature, failed)) {
+                seen = null;
+                return false;
+            }
+            if (!Arrays.equals(signature, seen)) {
+                // changed since the last check : wait until the file is stable
+                seen = signature;
+                return false;
+            }
+            seen = null;
+
+            long start = System.nanoTime();
+            try {
+                NGramTable fresh = loader.load(path);
+                if (fresh.size() == 0 && signature[0] > 0) {
+                    throw new IOException("no n-grams in a non-empty file");
+                }
+                table.swap(fresh, signature[0], signature[1]);
+                failed = null;
+                logger.info(String.format("Reloaded %s (%d n-grams) in %.2fs", path, fresh.size(), (System.nanoTime() - start) / 1e9));
+                return true;
+            } catch (IOException | RuntimeException x) {
+                failed = signature;
+                logger.warning(String.format("Could not reload %s, keeping the loaded table : %s", path, x));
+                return false;
+            }
+        }
+    }
+}
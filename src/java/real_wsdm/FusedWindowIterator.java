@@ -0,0 +1,235 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.retrieval.AnnotatedNode;
+import org.lemurproject.galago.core.retrieval.iterator.ConjunctionIterator;
+import org.lemurproject.galago.core.retrieval.iterator.ExtentIterator;
+import org.lemurproject.galago.core.retrieval.iterator.LengthsIterator;
+import org.lemurproject.galago.core.retrieval.iterator.ScoreIterator;
+import org.lemurproject.galago.core.retrieval.processing.ScoringContext;
+import org.lemurproject.galago.core.retrieval.query.NodeParameters;
+import org.lemurproject.galago.core.util.ExtentArray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scores the #od:odWidth and #uw:uwWidth windows of the same terms in one
+ * pass : the positions of the children are read once per document and both
+ * window counts are taken from them, instead of one #od and one #uw node
+ * walking the same postings. The score is the weighted sum of the two
+ * dirichlet scores the separate nodes would get.
+ * <p>
+ * #rwsdmwindow( #lengths:document:part=lengths() #extents:a() #extents:b() ) <br>
+ * parameters : odWidth (default 1), uwWidth (default 8), odWeight, uwWeight
+ * (default 0.5 each), mu (default 1500), collectionLength, maxLength (longest
+ * document, default collectionLength), odFrequency, uwFrequency (set by
+ * RealWSDMTraversal, "rwsdmFusedWindows" : true).
+ * <p>
+ * The operator is registered in traversal-config.json ("operators").
+ *
+ * @author fsqcds
+ */
+public class FusedWindowIterator extends ConjunctionIterator implements ScoreIterator {
+    public static final String OPERATOR = "rwsdmwindow";
+
+    private final NodeParameters np;
+    private final LengthsIterator lengths;
+    private final ExtentIterator[] extents;
+    private final ExtentArray[] arrays;
+    private final int[] cursors;
+    private final int odWidth;
+    private final int uwWidth;
+    private final double odWeight;
+    private final double uwWeight;
+    private final double mu;
+    private final double odBackground;
+    private final double uwBackground;
+    private final double maximumScore;
+    private final double minimumScore;
+
+    private long document = -1;
+    private int odCount;
+    private int uwCount;
+
+    public FusedWindowIterator(NodeParameters np, LengthsIterator lengths, ExtentIterator[] extents) throws IOException {
+        super(np, extents);
+        this.np = np;
+        this.lengths = lengths;
+        this.extents = extents;
+        this.arrays = new ExtentArray[extents.length];
+        this.cursors = new int[extents.length];
+        this.odWidth = (int) np.get("odWidth", 1L);
+        this.uwWidth = (int) np.get("uwWidth", 8L);
+        this.odWeight = np.get("odWeight", 0.5);
+        this.uwWeight = np.get("uwWeight", 0.5);
+        this.mu = np.get("mu", 1500.0);
+        long collectionLength = np.getLong("collectionLength");
+        this.odBackground = background(np.getLong("odFrequency"), collectionLength);
+        this.uwBackground = background(np.getLong("uwFrequency"), collectionLength);
+        // a dirichlet score grows with the count and, at count = length, with the length
+        long maxLength = np.get("maxLength", 0L) > 0 ? np.get("maxLength", 0L) : collectionLength;
+        double[] od = bounds(odWeight, odBackground, maxLength);
+        double[] uw = bounds(uwWeight, uwBackground, maxLength);
+        this.minimumScore = od[0] + uw[0];
+        this.maximumScore = od[1] + uw[1];
+        syncTo(0);
+    }
+
+    /*
+     * Same background as the dirichlet scorer of the separate nodes.
+     */
+    private static double background(long frequency, long collectionLength) {
+        return frequency > 0 ? (double) frequency / collectionLength : 0.5 / collectionLength;
+    }
+
+    /*
+     * {min, max} of weight * dirichlet(count, length) over 0 <= count <= length <= maxLength.
+     */
+    private double[] bounds(double weight, double background, long maxLength) {
+        double low = weight * dirichlet(0, maxLength, background);
+        double high = weight * dirichlet(maxLength, maxLength, background);
+        return new double[]{Math.min(low, high), Math.max(low, high)};
+    }
+
+    private double dirichlet(double count, double length, double background) {
+        return Math.log((count + mu * background) / (length + mu));
+    }
+
+    @Override
+    public void syncTo(long identifier) throws IOException {
+        super.syncTo(identifier);
+        // null while the super constructor syncs
+        if (lengths != null) {
+            lengths.syncTo(identifier);
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        lengths.reset();
+        document = -1;
+    }
+
+    @Override
+    public double score(ScoringContext c) {
+        loadCounts(c);
+        double length = lengths.length(c);
+        return odWeight * dirichlet(odCount, length, odBackground)
+                + uwWeight * dirichlet(uwCount, length, uwBackground);
+    }
+
+    @Override
+    public double maximumScore() {
+        return maximumScore;
+    }
+
+    @Override
+    public double minimumScore() {
+        return minimumScore;
+    }
+
+    @Override
+    public String getValueString(ScoringContext c) throws IOException {
+        loadCounts(c);
+        return String.format("%d %d,%d %f", currentCandidate(), odCount, uwCount, score(c));
+    }
+
+    @Override
+    public AnnotatedNode getAnnotatedNode(ScoringContext c) throws IOException {
+        List<AnnotatedNode> children = new ArrayList<>();
+        children.add(lengths.getAnnotatedNode(c));
+        for (ExtentIterator extent : extents) {
+            children.add(extent.getAnnotatedNode(c));
+        }
+        return new AnnotatedNode("score", getClass().getSimpleName(), np.toString(), currentCandidate(),
+                hasMatch(c), Double.toString(score(c)), children);
+    }
+
+    /*
+     * Both counts of the document, from one read of the children's positions.
+     */
+    private void loadCounts(ScoringContext c) {
+        if (document == c.document) {
+            return;
+        }
+        document = c.document;
+        odCount = 0;
+        uwCount = 0;
+        for (int i = 0; i < extents.length; i++) {
+            if (extents[i].isDone() || !extents[i].hasMatch(c)) {
+                return;
+            }
+            arrays[i] = extents[i].extents(c);
+            if (arrays[i].size() == 0) {
+                return;
+            }
+        }
+        odCount = ordered();
+        uwCount = unordered();
+    }
+
+    /*
+     * Counts like the ordered window iterator : every occurrence of the first
+     * term followed by the others, each starting less than odWidth after the
+     * end of the previous one.
+     */
+    private int ordered() {
+        int count = 0;
+        Arrays.fill(cursors, 0);
+        while (true) {
+            boolean valid = true;
+            for (int i = 1; i < arrays.length; i++) {
+                int end = arrays[i - 1].end(cursors[i - 1]);
+                while (arrays[i].begin(cursors[i]) < end) {
+                    if (++cursors[i] >= arrays[i].size()) {
+                        return count;
+                    }
+                }
+                if (arrays[i].begin(cursors[i]) - end >= odWidth) {
+                    valid = false;
+                    break;
+                }
+            }
+            if (valid) {
+                count++;
+            }
+            if (++cursors[0] >= arrays[0].size()) {
+                return count;
+            }
+        }
+    }
+
+    /*
+     * Counts like the unordered window iterator : windows of at most uwWidth
+     * positions holding every term, advancing the leftmost term each time.
+     */
+    private int unordered() {
+        int count = 0;
+        Arrays.fill(cursors, 0);
+        int max = Integer.MIN_VALUE;
+        for (ExtentArray array : arrays) {
+            max = Math.max(max, array.end(0));
+        }
+        while (true) {
+            int min = Integer.MAX_VALUE;
+            int first = -1;
+            for (int i = 0; i < arrays.length; i++) {
+                int begin = arrays[i].begin(cursors[i]);
+                if (begin < min) {
+                    min = begin;
+                    first = i;
+                }
+            }
+            if (max - min <= uwWidth) {
+                count++;
+            }
+            if (++cursors[first] >= arrays[first].size()) {
+                return count;
+            }
+            max = Math.max(max, arrays[first].end(cursors[first]));
+        }
+    }
+}
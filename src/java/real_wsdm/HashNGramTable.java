@@ -0,0 +1,190 @@
+package real_wsdm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-heap n-gram table, used for feature files that are still plain TSV (see
+ * {@link NGramTableLoader}).
+ * <p>
+ * Unigram values are indexed by term id, bigrams and trigrams live in
+ * primitive maps keyed by packed ids (see {@link NGramTable}).
+ *
+ * @author fsqcds
+ */
+public class HashNGramTable implements NGramTable {
+    final Map<String, Integer> dictionary;
+    final List<String> terms;
+    int[] unigramValues;
+    // bigram key -> bigram index
+    final LongIntMap bigrams;
+    int[] bigramValues;
+    // (bigram index, id3) -> value
+    final LongIntMap trigrams;
+    private long entries;
+
+    public HashNGramTable() {
+        this(new ArrayList<>(), new int[16], new LongIntMap(), new int[16], new LongIntMap(), 0);
+    }
+
+    /**
+     * Restores a table from its arrays (see {@link NGramTableSnapshot}).
+     */
+    HashNGramTable(List<String> terms, int[] unigramValues, LongIntMap bigrams, int[] bigramValues,
+                   LongIntMap trigrams, long entries) {
+        this.terms = terms;
+        this.dictionary = new HashMap<>(terms.size() * 2);
+        for (int id = 0; id < terms.size(); id++) {
+            dictionary.put(terms.get(id), id);
+        }
+        this.unigramValues = unigramValues.length == 0 ? new int[16] : unigramValues;
+        this.bigrams = bigrams;
+        this.bigramValues = bigramValues.length == 0 ? new int[16] : bigramValues;
+        this.trigrams = trigrams;
+        this.entries = entries;
+    }
+
+    /**
+     * Adds a stemmed n-gram (terms separated by single spaces). Only unigrams,
+     * bigrams and trigrams are kept.
+     */
+    public void put(String ngram, int value) {
+        int first = ngram.indexOf(' ');
+        if (first < 0) {
+            putUnigram(addTerm(ngram), value);
+            return;
+        }
+        int second = ngram.indexOf(' ', first + 1);
+        int id1 = addTerm(ngram.substring(0, first));
+        if (second < 0) {
+            putBigram(id1, addTerm(ngram.substring(first + 1)), value);
+            return;
+        }
+        if (ngram.indexOf(' ', second + 1) >= 0) {
+            return;
+        }
+        int id2 = addTerm(ngram.substring(first + 1, second));
+        putTrigram(id1, id2, addTerm(ngram.substring(second + 1)), value);
+    }
+
+    @Override
+    public int termId(String stemmedTerm) {
+        Integer id = dictionary.get(stemmedTerm);
+        return id == null ? UNKNOWN_TERM : id;
+    }
+
+    @Override
+    public int get(int[] ids, int offset, int order) {
+        for (int i = offset; i < offset + order; i++) {
+            if (ids[i] < 0) {
+                return MISSING;
+            }
+        }
+        switch (order) {
+            case 1:
+                return unigramValues[ids[offset]];
+            case 2: {
+                int index = bigrams.get(NGramTable.pack(ids[offset], ids[offset + 1]), -1);
+                return index < 0 ? MISSING : bigramValues[index];
+            }
+            case 3: {
+                int index = bigrams.get(NGramTable.pack(ids[offset], ids[offset + 1]), -1);
+                return index < 0 ? MISSING : trigrams.get(NGramTable.pack(index, ids[offset + 2]), MISSING);
+            }
+            default:
+                return MISSING;
+        }
+    }
+
+    @Override
+    public long size() {
+        return entries;
+    }
+
+    /**
+     * Lists the bigrams that have a value and the trigrams.
+     */
+    void forEachNGram(BloomNGramTable.Visitor visitor) {
+        long[] keys = bigrams.keys();
+        int[] indexes = bigrams.values();
+        // bigram index -> bigram key, to spell out the trigrams
+        long[] bigramKeys = new long[bigrams.size()];
+        int[] ids = new int[3];
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != LongIntMap.EMPTY) {
+                bigramKeys[indexes[slot]] = keys[slot];
+                if (bigramValues[indexes[slot]] != MISSING) {
+                    ids[0] = (int) (keys[slot] >>> 32);
+                    ids[1] = (int) keys[slot];
+                    visitor.visit(ids, 2);
+                }
+            }
+        }
+        keys = trigrams.keys();
+        for (long key : keys) {
+            if (key != LongIntMap.EMPTY) {
+                long bigram = bigramKeys[(int) (key >>> 32)];
+                ids[0] = (int) (bigram >>> 32);
+                ids[1] = (int) bigram;
+                ids[2] = (int) key;
+                visitor.visit(ids, 3);
+            }
+        }
+    }
+
+    int addTerm(String term) {
+        Integer id = dictionary.get(term);
+        if (id == null) {
+            id = terms.size();
+            dictionary.put(term, id);
+            terms.add(term);
+            if (id >= unigramValues.length) {
+                int length = unigramValues.length;
+                unigramValues = Arrays.copyOf(unigramValues, length * 2);
+                Arrays.fill(unigramValues, length, unigramValues.length, MISSING);
+            }
+            unigramValues[id] = MISSING;
+        }
+        return id;
+    }
+
+    void putUnigram(int id, int value) {
+        if (unigramValues[id] == MISSING) {
+            entries++;
+        }
+        unigramValues[id] = value;
+    }
+
+    void putBigram(int id1, int id2, int value) {
+        int index = bigramIndex(id1, id2);
+        if (bigramValues[index] == MISSING) {
+            entries++;
+        }
+        bigramValues[index] = value;
+    }
+
+    void putTrigram(int id1, int id2, int id3, int value) {
+        long key = NGramTable.pack(bigramIndex(id1, id2), id3);
+        if (trigrams.get(key, MISSING) == MISSING) {
+            entries++;
+        }
+        trigrams.put(key, value);
+    }
+
+    private int bigramIndex(int id1, int id2) {
+        long key = NGramTable.pack(id1, id2);
+        int index = bigrams.get(key, -1);
+        if (index < 0) {
+            index = bigrams.size();
+            bigrams.put(key, index);
+            if (index >= bigramValues.length) {
+                bigramValues = Arrays.copyOf(bigramValues, bigramValues.length * 2);
+            }
+            bigramValues[index] = MISSING;
+        }
+        return index;
+    }
+}
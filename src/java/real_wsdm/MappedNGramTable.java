@@ -0,0 +1,397 @@
+package real_wsdm;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Binary n-gram lexicon that is memory-mapped instead of loaded onto the heap.
+ * <p>
+ * The file holds the same structure as {@link HashNGramTable}: a term
+ * dictionary, unigram values indexed by term id, and open-addressing tables of
+ * packed bigram and trigram keys. Lookups probe the mapped file directly, so
+ * the table costs (almost) no heap and the pages are shared between all the
+ * JVMs that map the same file.
+ * <p>
+ * Layout (big-endian): <br>
+ * header : int magic, int version, long entries, long terms, long termSlots,
+ * long bigrams, long bigramSlots, long trigrams, long trigramSlots <br>
+ * term slots : long termRecordOffset[termSlots] (0 = empty) <br>
+ * unigrams : int value[terms] (padded to 8 bytes) <br>
+ * bigram slots : {long key, int bigramIndex, int value}[bigramSlots] (key -1 = empty) <br>
+ * trigram slots : {long key, int value, int unused}[trigramSlots] (key -1 = empty) <br>
+ * term record : int hashCode, int id, short length, char term[length] <br>
+ * <p>
+ * Files are produced from the TSV n-gram files with {@link #convert}:
+ * <pre>
+ *   java -cp ... real_wsdm.MappedNGramTable wiki-ngrams.tsv wiki-ngrams.bin
+ * </pre>
+ *
+ * @author fsqcds
+ */
+public class MappedNGramTable implements NGramTable {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+
+    static final int MAGIC = 0x52574E47; // "RWNG"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 80;
+    private static final int SLOT_SIZE = 16;
+
+    // records never cross a segment boundary because every segment is mapped
+    // with an overlap larger than the biggest possible record
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int MAX_TERM_LENGTH = 0xFFFF;
+    private static final long SEGMENT_OVERLAP = 1L << 18;
+
+    private final Path path;
+    private final MappedByteBuffer[] segments;
+    private final long entries;
+    private final long terms;
+    private final long termMask;
+    private final long bigramMask;
+    private final long trigramMask;
+    private final Layout layout;
+
+    private MappedNGramTable(Path path, MappedByteBuffer[] segments) throws IOException {
+        this.path = path;
+        this.segments = segments;
+        if (getInt(0) != MAGIC) {
+            throw new IOException(String.format("%s is not an n-gram lexicon", path));
+        }
+        if (getInt(4) != VERSION) {
+            throw new IOException(String.format("%s has unsupported lexicon version %d, convert it again", path, getInt(4)));
+        }
+        this.entries = getLong(8);
+        this.terms = getLong(16);
+        this.termMask = getLong(24) - 1;
+        this.bigramMask = getLong(40) - 1;
+        this.trigramMask = getLong(56) - 1;
+        this.layout = new Layout(terms, termMask + 1, bigramMask + 1, trigramMask + 1);
+    }
+
+    /**
+     * Maps an existing lexicon file read-only.
+     */
+    public static MappedNGramTable open(String path) throws IOException {
+        Path p = Paths.get(path);
+        try (FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+            MappedNGramTable table = new MappedNGramTable(p, map(channel, FileChannel.MapMode.READ_ONLY, channel.size()));
+            logger.info(String.format("Mapped %d n-grams (%d terms) from %s", table.entries, table.terms, path));
+            return table;
+        }
+    }
+
+    /**
+     * @return true if the file starts with the lexicon magic number
+     */
+    public static boolean isLexicon(String path) {
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            return new DataInputStream(in).readInt() == MAGIC;
+        } catch (IOException x) {
+            return false;
+        }
+    }
+
+    @Override
+    public int termId(String stemmedTerm) {
+        int hash = stemmedTerm.hashCode();
+        for (long slot = LongIntMap.mix(hash) & termMask; ; slot = (slot + 1) & termMask) {
+            long record = getLong(HEADER_SIZE + slot * 8);
+            if (record == 0) {
+                return UNKNOWN_TERM;
+            }
+            if (getInt(record) == hash && termEquals(record + 8, stemmedTerm)) {
+                return getInt(record + 4);
+            }
+        }
+    }
+
+    @Override
+    public int get(int[] ids, int offset, int order) {
+        for (int i = offset; i < offset + order; i++) {
+            if (ids[i] < 0) {
+                return MISSING;
+            }
+        }
+        switch (order) {
+            case 1:
+                return getInt(layout.unigrams + 4L * ids[offset]);
+            case 2: {
+                long slot = probe(layout.bigrams, bigramMask, NGramTable.pack(ids[offset], ids[offset + 1]));
+                return slot < 0 ? MISSING : getInt(slot + 12);
+            }
+            case 3: {
+                long bigram = probe(layout.bigrams, bigramMask, NGramTable.pack(ids[offset], ids[offset + 1]));
+                if (bigram < 0) {
+                    return MISSING;
+                }
+                long slot = probe(layout.trigrams, trigramMask, NGramTable.pack(getInt(bigram + 8), ids[offset + 2]));
+                return slot < 0 ? MISSING : getInt(slot + 8);
+            }
+            default:
+                return MISSING;
+        }
+    }
+
+    @Override
+    public long size() {
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+
+    /**
+     * Lists the bigrams that have a value and the trigrams.
+     */
+    void forEachNGram(BloomNGramTable.Visitor visitor) {
+        int bigramCount = 0;
+        for (long slot = 0; slot <= bigramMask; slot++) {
+            long offset = layout.bigrams + slot * SLOT_SIZE;
+            if (getLong(offset) != LongIntMap.EMPTY) {
+                bigramCount = Math.max(bigramCount, getInt(offset + 8) + 1);
+            }
+        }
+        // bigram index -> bigram key, to spell out the trigrams
+        long[] bigramKeys = new long[bigramCount];
+        int[] ids = new int[3];
+        for (long slot = 0; slot <= bigramMask; slot++) {
+            long offset = layout.bigrams + slot * SLOT_SIZE;
+            long key = getLong(offset);
+            if (key != LongIntMap.EMPTY) {
+                bigramKeys[getInt(offset + 8)] = key;
+                if (getInt(offset + 12) != MISSING) {
+                    ids[0] = (int) (key >>> 32);
+                    ids[1] = (int) key;
+                    visitor.visit(ids, 2);
+                }
+            }
+        }
+        for (long slot = 0; slot <= trigramMask; slot++) {
+            long key = getLong(layout.trigrams + slot * SLOT_SIZE);
+            if (key != LongIntMap.EMPTY) {
+                long bigram = bigramKeys[(int) (key >>> 32)];
+                ids[0] = (int) (bigram >>> 32);
+                ids[1] = (int) bigram;
+                ids[2] = (int) key;
+                visitor.visit(ids, 3);
+            }
+        }
+    }
+
+    /*
+     * @return file offset of the slot holding the key, -1 if absent
+     */
+    private long probe(long table, long mask, long key) {
+        for (long slot = LongIntMap.mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long offset = table + slot * SLOT_SIZE;
+            long k = getLong(offset);
+            if (k == key) {
+                return offset;
+            }
+            if (k == LongIntMap.EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    private boolean termEquals(long offset, String term) {
+        MappedByteBuffer segment = segments[(int) (offset >>> SEGMENT_SHIFT)];
+        int pos = (int) (offset & SEGMENT_MASK);
+        int length = segment.getShort(pos) & 0xFFFF;
+        if (length != term.length()) {
+            return false;
+        }
+        pos += 2;
+        for (int i = 0; i < length; i++) {
+            if (segment.getChar(pos + 2 * i) != term.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getInt(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].getInt((int) (offset & SEGMENT_MASK));
+    }
+
+    private long getLong(long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long size) throws IOException {
+        int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        MappedByteBuffer[] segments = new MappedByteBuffer[Math.max(count, 1)];
+        for (int i = 0; i < segments.length; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            long length = Math.min(size - start, SEGMENT_SIZE + SEGMENT_OVERLAP);
+            segments[i] = channel.map(mode, start, Math.max(length, 0));
+        }
+        return segments;
+    }
+
+    private static long slots(long entries) {
+        return Long.highestOneBit(Math.max(2, entries * 2) - 1) << 1;
+    }
+
+    /*
+     * Section offsets, derived from the header counts.
+     */
+    private static final class Layout {
+        final long unigrams;
+        final long bigrams;
+        final long trigrams;
+        final long records;
+
+        Layout(long terms, long termSlots, long bigramSlots, long trigramSlots) {
+            unigrams = HEADER_SIZE + termSlots * 8;
+            bigrams = (unigrams + terms * 4 + 7) & ~7L;
+            trigrams = bigrams + bigramSlots * SLOT_SIZE;
+            records = trigrams + trigramSlots * SLOT_SIZE;
+        }
+    }
+
+    /**
+     * Converts a TSV n-gram file ("gram gram\tcount" per line) into a lexicon.
+     * The TSV is read into a {@link HashNGramTable} first (in parallel, see
+     * {@link NGramTableLoader}).
+     */
+    public static void convert(String tsvPath, String lexiconPath) throws IOException {
+        logger.info(String.format("Start converting %s into %s", tsvPath, lexiconPath));
+        HashNGramTable table = NGramTableLoader.load(tsvPath);
+        write(table, lexiconPath);
+        logger.info(String.format("Finished converting %d n-grams into %s", table.size(), lexiconPath));
+    }
+
+    /**
+     * Writes an on-heap table in the lexicon format.
+     */
+    public static void write(HashNGramTable table, String lexiconPath) throws IOException {
+        long terms = table.terms.size();
+        long termSlots = slots(terms);
+        long bigrams = table.bigrams.size();
+        long bigramSlots = slots(bigrams);
+        long trigrams = table.trigrams.size();
+        long trigramSlots = slots(trigrams);
+        Layout layout = new Layout(terms, termSlots, bigramSlots, trigramSlots);
+
+        long size = layout.records;
+        for (String term : table.terms) {
+            if (term.length() > MAX_TERM_LENGTH) {
+                throw new IOException(String.format("term too long : %s", term));
+            }
+            size += 4 + 4 + 2 + 2L * term.length();
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(lexiconPath, "rw")) {
+            file.setLength(0);
+            file.setLength(size);
+            MappedByteBuffer[] segments = map(file.getChannel(), FileChannel.MapMode.READ_WRITE, size);
+
+            // term records, linked into the term slots
+            long record = layout.records;
+            for (int id = 0; id < terms; id++) {
+                String term = table.terms.get(id);
+                int hash = term.hashCode();
+                MappedByteBuffer segment = segments[(int) (record >>> SEGMENT_SHIFT)];
+                int pos = (int) (record & SEGMENT_MASK);
+                segment.putInt(pos, hash);
+                segment.putInt(pos + 4, id);
+                segment.putShort(pos + 8, (short) term.length());
+                for (int i = 0; i < term.length(); i++) {
+                    segment.putChar(pos + 10 + 2 * i, term.charAt(i));
+                }
+                for (long slot = LongIntMap.mix(hash) & (termSlots - 1); ; slot = (slot + 1) & (termSlots - 1)) {
+                    long offset = HEADER_SIZE + slot * 8;
+                    if (getLong(segments, offset) == 0) {
+                        putLong(segments, offset, record);
+                        break;
+                    }
+                }
+                putInt(segments, layout.unigrams + 4L * id, table.unigramValues[id]);
+                record += 4 + 4 + 2 + 2L * term.length();
+            }
+
+            // bigrams : key, bigram index, value
+            for (long slot = 0; slot < bigramSlots; slot++) {
+                putLong(segments, layout.bigrams + slot * SLOT_SIZE, LongIntMap.EMPTY);
+            }
+            for (int i = 0; i < table.bigrams.capacity(); i++) {
+                long key = table.bigrams.keyAt(i);
+                if (key != LongIntMap.EMPTY) {
+                    int index = table.bigrams.valueAt(i);
+                    long offset = insert(segments, layout.bigrams, bigramSlots - 1, key);
+                    putInt(segments, offset + 8, index);
+                    putInt(segments, offset + 12, table.bigramValues[index]);
+                }
+            }
+
+            // trigrams : key, value
+            for (long slot = 0; slot < trigramSlots; slot++) {
+                putLong(segments, layout.trigrams + slot * SLOT_SIZE, LongIntMap.EMPTY);
+            }
+            for (int i = 0; i < table.trigrams.capacity(); i++) {
+                long key = table.trigrams.keyAt(i);
+                if (key != LongIntMap.EMPTY) {
+                    long offset = insert(segments, layout.trigrams, trigramSlots - 1, key);
+                    putInt(segments, offset + 8, table.trigrams.valueAt(i));
+                }
+            }
+
+            putInt(segments, 0, MAGIC);
+            putInt(segments, 4, VERSION);
+            putLong(segments, 8, table.size());
+            putLong(segments, 16, terms);
+            putLong(segments, 24, termSlots);
+            putLong(segments, 32, bigrams);
+            putLong(segments, 40, bigramSlots);
+            putLong(segments, 48, trigrams);
+            putLong(segments, 56, trigramSlots);
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+    }
+
+    private static long insert(MappedByteBuffer[] segments, long table, long mask, long key) {
+        for (long slot = LongIntMap.mix(key) & mask; ; slot = (slot + 1) & mask) {
+            long offset = table + slot * SLOT_SIZE;
+            if (getLong(segments, offset) == LongIntMap.EMPTY) {
+                putLong(segments, offset, key);
+                return offset;
+            }
+        }
+    }
+
+    private static long getLong(MappedByteBuffer[] segments, long offset) {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)].getLong((int) (offset & SEGMENT_MASK));
+    }
+
+    private static void putLong(MappedByteBuffer[] segments, long offset, long value) {
+        segments[(int) (offset >>> SEGMENT_SHIFT)].putLong((int) (offset & SEGMENT_MASK), value);
+    }
+
+    private static void putInt(MappedByteBuffer[] segments, long offset, int value) {
+        segments[(int) (offset >>> SEGMENT_SHIFT)].putInt((int) (offset & SEGMENT_MASK), value);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: real_wsdm.MappedNGramTable <ngrams.tsv> <ngrams.bin>");
+            System.exit(1);
+        }
+        convert(args[0], args[1]);
+    }
+}
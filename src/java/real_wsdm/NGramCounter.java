@@ -0,0 +1,607 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.parse.Document;
+import org.lemurproject.galago.core.parse.TagTokenizer;
+import org.lemurproject.galago.core.parse.stem.KrovetzStemmer;
+import org.lemurproject.galago.core.parse.stem.Stemmer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Counts the stemmed unigrams, bigrams and trigrams of every line of a text
+ * file (e.g. the Wikipedia dump) and writes them as "gram gram\tcount" lines,
+ * the format read by {@link NGramTableLoader}.
+ * <p>
+ * Lines are handed out in batches to worker threads. Every worker has its own
+ * tokenizer and stemmer and counts into primitive hash tables keyed by term
+ * ids. When the tables of a worker hold their share of "maxEntries"
+ * n-grams, they are sorted and spilled to disk as runs. The runs are merged at
+ * the end, and n-grams seen fewer than "minCount" times are dropped during the
+ * merge. Memory is bounded by the term dictionary and the count tables, not by
+ * the number of distinct n-grams.
+ * <pre>
+ *   java -cp ... real_wsdm.NGramCounter wiki.txt wiki-ngrams.tsv [threads] [minCount] [maxEntries]
+ * </pre>
+ *
+ * @author fsqcds
+ */
+public class NGramCounter {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+    private static final int BATCH_LINES = 1024;
+    private static final int MAX_FAN_IN = 256;
+    private static final int TOKEN_CACHE_SIZE = 1 << 20;
+    private static final List<String> END = Collections.emptyList();
+
+    private final int threads;
+    private final long maxEntries;
+    private final int minCount;
+    private final Path tmpDir;
+
+    // global dictionary of stemmed terms, the n-grams are counted by term id
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final List<String> terms = new ArrayList<>();
+    private final List<List<Path>> runs = new ArrayList<>();
+
+    /**
+     * @param maxEntries n-grams kept in memory by all workers together before spilling
+     * @param minCount   n-grams with a smaller total count are not written
+     */
+    public NGramCounter(int threads, long maxEntries, int minCount, Path tmpDir) {
+        this.threads = Math.max(1, threads);
+        this.maxEntries = Math.max(this.threads * 1024L, maxEntries);
+        this.minCount = Math.max(1, minCount);
+        this.tmpDir = tmpDir;
+        for (int order = 0; order <= 3; order++) {
+            runs.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+    }
+
+    public NGramCounter(int threads, int minCount) {
+        this(threads, 32L << 20, minCount, Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+
+    public void count(String inputPath, String outputPath) throws IOException {
+        try (Writer out = Files.newBufferedWriter(Paths.get(outputPath), StandardCharsets.UTF_8)) {
+            count(inputPath, out);
+        }
+    }
+
+    public void count(String inputPath, Writer out) throws IOException {
+        long start = System.nanoTime();
+        Path runDir = Files.createTempDirectory(tmpDir, "ngram-runs");
+        try {
+            long lines = countRuns(inputPath, runDir);
+            logger.info(String.format("Counted %d lines of %s (%d terms) in %.1fs, merging %d runs",
+                    lines, inputPath, terms.size(), (System.nanoTime() - start) / 1e9,
+                    runs.get(1).size() + runs.get(2).size() + runs.get(3).size()));
+            long written = 0;
+            for (int order = 1; order <= 3; order++) {
+                written += merge(order, runDir, out);
+            }
+            out.flush();
+            logger.info(String.format("Wrote %d n-grams with count >= %d in %.1fs", written, minCount, (System.nanoTime() - start) / 1e9));
+        } finally {
+            deleteRuns(runDir);
+        }
+    }
+
+    /*
+     * Reads the input, counts on the workers and leaves sorted runs in runDir.
+     */
+    private long countRuns(String inputPath, Path runDir) throws IOException {
+        BlockingQueue<List<String>> batches = new ArrayBlockingQueue<>(threads * 2);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long lines = 0;
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int w = 0; w < threads; w++) {
+                Worker worker = new Worker(w, runDir, maxEntries / threads);
+                workers.add(pool.submit(() -> {
+                    worker.run(batches);
+                    return null;
+                }));
+            }
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(inputPath), StandardCharsets.UTF_8)) {
+                List<String> batch = new ArrayList<>(BATCH_LINES);
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    batch.add(line);
+                    lines++;
+                    if (batch.size() == BATCH_LINES) {
+                        put(batches, batch, workers);
+                        batch = new ArrayList<>(BATCH_LINES);
+                    }
+                }
+                put(batches, batch, workers);
+            } finally {
+                for (int w = 0; w < threads; w++) {
+                    put(batches, END, workers);
+                }
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("interrupted while counting %s", inputPath), x);
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof IOException) {
+                throw (IOException) x.getCause();
+            }
+            throw new IOException(String.format("failed to count %s", inputPath), x.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return lines;
+    }
+
+    /*
+     * Blocks until a worker takes the batch, fails if a worker died.
+     */
+    private static void put(BlockingQueue<List<String>> batches, List<String> batch, List<Future<?>> workers)
+            throws IOException {
+        try {
+            while (!batches.offer(batch, 1, TimeUnit.SECONDS)) {
+                for (Future<?> worker : workers) {
+                    if (worker.isDone()) {
+                        worker.get();
+                        throw new IOException("worker stopped");
+                    }
+                }
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", x);
+        } catch (ExecutionException x) {
+            throw new IOException("worker failed", x.getCause());
+        }
+    }
+
+    private int termId(String term) {
+        synchronized (dictionary) {
+            Integer id = dictionary.get(term);
+            if (id == null) {
+                id = terms.size();
+                dictionary.put(term, id);
+                terms.add(term);
+            }
+            return id;
+        }
+    }
+
+    /*
+     * Merges the runs of one order (in several passes if there are too many)
+     * and writes the n-grams with a total count of at least minCount.
+     */
+    private long merge(int order, Path runDir, Writer out) throws IOException {
+        List<Path> pending = new ArrayList<>(runs.get(order));
+        int pass = 0;
+        while (pending.size() > MAX_FAN_IN) {
+            List<Path> merged = new ArrayList<>();
+            for (int from = 0; from < pending.size(); from += MAX_FAN_IN) {
+                List<Path> group = pending.subList(from, Math.min(pending.size(), from + MAX_FAN_IN));
+                Path run = runDir.resolve(String.format("merged-%d-%d-%d.run", order, pass, merged.size()));
+                try (RunWriter writer = new RunWriter(run)) {
+                    mergeRuns(group, (hi, lo, count) -> writer.write(hi, lo, (int) Math.min(Integer.MAX_VALUE, count)));
+                }
+                for (Path p : group) {
+                    Files.deleteIfExists(p);
+                }
+                merged.add(run);
+            }
+            pending = merged;
+            pass++;
+        }
+
+        long[] written = {0};
+        StringBuilder line = new StringBuilder();
+        mergeRuns(pending, (hi, lo, count) -> {
+            if (count < minCount) {
+                return;
+            }
+            line.setLength(0);
+            if (order == 1) {
+                line.append(terms.get((int) hi));
+            } else {
+                line.append(terms.get((int) (hi >>> 32))).append(' ').append(terms.get((int) hi));
+                if (order == 3) {
+                    line.append(' ').append(terms.get(lo));
+                }
+            }
+            // NGramTableLoader reads int counts
+            line.append('\t').append(Math.min(Integer.MAX_VALUE, count)).append('\n');
+            out.append(line);
+            written[0]++;
+        });
+        return written[0];
+    }
+
+    private interface MergeSink {
+        void accept(long hi, int lo, long count) throws IOException;
+    }
+
+    private static void mergeRuns(List<Path> paths, MergeSink sink) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) ->
+                a.hi != b.hi ? Long.compare(a.hi, b.hi) : Integer.compare(a.lo, b.lo));
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (Path path : paths) {
+                RunReader reader = new RunReader(path);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader first = queue.poll();
+                long hi = first.hi;
+                int lo = first.lo;
+                long count = first.count;
+                if (first.next()) {
+                    queue.add(first);
+                }
+                while (!queue.isEmpty() && queue.peek().hi == hi && queue.peek().lo == lo) {
+                    RunReader same = queue.poll();
+                    count += same.count;
+                    if (same.next()) {
+                        queue.add(same);
+                    }
+                }
+                sink.accept(hi, lo, count);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void deleteRuns(Path runDir) {
+        try {
+            try (Stream<Path> files = Files.list(runDir)) {
+                for (Path p : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(runDir);
+        } catch (IOException x) {
+            System.err.format("IOException: %s%n", x);
+        }
+    }
+
+    /*
+     * Tokenizes, stems and counts batches of lines into its own tables.
+     */
+    private final class Worker {
+        private final int id;
+        private final Path runDir;
+        private final long maxEntries;
+        private final TagTokenizer tokenizer = new TagTokenizer();
+        private final Stemmer stemmer = new KrovetzStemmer();
+        // token -> id of its stem, saves the stemming and the dictionary lock for frequent tokens
+        private final Map<String, Integer> tokenIds = new HashMap<>();
+        private final Counts[] counts = {null, new Counts(), new Counts(), new Counts()};
+        private int[] ids = new int[256];
+        private int spills;
+
+        Worker(int id, Path runDir, long maxEntries) {
+            this.id = id;
+            this.runDir = runDir;
+            this.maxEntries = maxEntries;
+        }
+
+        void run(BlockingQueue<List<String>> batches) throws IOException, InterruptedException {
+            for (List<String> batch = batches.take(); batch != END; batch = batches.take()) {
+                for (String line : batch) {
+                    count(line);
+                }
+                if (counts[1].size + counts[2].size + counts[3].size >= maxEntries) {
+                    spill();
+                }
+            }
+            spill();
+        }
+
+        private void count(String line) {
+            Document document = new Document();
+            document.text = line;
+            tokenizer.process(document);
+            List<String> tokens = document.terms;
+            if (tokens == null || tokens.isEmpty()) {
+                return;
+            }
+            if (ids.length < tokens.size()) {
+                ids = new int[Math.max(tokens.size(), ids.length * 2)];
+            }
+            int n = tokens.size();
+            for (int i = 0; i < n; i++) {
+                ids[i] = tokenId(tokens.get(i));
+            }
+            for (int i = 0; i < n; i++) {
+                counts[1].add(ids[i], 0);
+                if (i + 1 < n) {
+                    long bigram = NGramTable.pack(ids[i], ids[i + 1]);
+                    counts[2].add(bigram, 0);
+                    if (i + 2 < n) {
+                        counts[3].add(bigram, ids[i + 2]);
+                    }
+                }
+            }
+        }
+
+        private int tokenId(String token) {
+            Integer id = tokenIds.get(token);
+            if (id == null) {
+                if (tokenIds.size() >= TOKEN_CACHE_SIZE) {
+                    tokenIds.clear();
+                }
+                id = termId(stemmer.stem(token));
+                tokenIds.put(token, id);
+            }
+            return id;
+        }
+
+        private void spill() throws IOException {
+            for (int order = 1; order <= 3; order++) {
+                if (counts[order].size == 0) {
+                    continue;
+                }
+                Path run = runDir.resolve(String.format("run-%d-%d-%d.run", order, id, spills));
+                counts[order].spill(run);
+                runs.get(order).add(run);
+            }
+            spills++;
+        }
+    }
+
+    /*
+     * Open addressing counts keyed by (long hi, int lo).
+     */
+    static final class Counts {
+        private static final long EMPTY = -1L;
+        private long[] hi;
+        private int[] lo;
+        private int[] counts;
+        private int mask;
+        int size;
+
+        Counts() {
+            allocate(1 << 16);
+        }
+
+        void add(long h, int l) {
+            if (2 * (size + 1) > hi.length) {
+                rehash(hi.length * 2);
+            }
+            for (int slot = slot(h, l); ; slot = (slot + 1) & mask) {
+                if (hi[slot] == EMPTY) {
+                    hi[slot] = h;
+                    lo[slot] = l;
+                    counts[slot] = 1;
+                    size++;
+                    return;
+                }
+                if (hi[slot] == h && lo[slot] == l) {
+                    if (counts[slot] != Integer.MAX_VALUE) {
+                        counts[slot]++;
+                    }
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Writes the entries sorted by (hi, lo) and empties the table.
+         */
+        void spill(Path run) throws IOException {
+            // compact to the front, then sort in place
+            int n = 0;
+            for (int slot = 0; slot < hi.length; slot++) {
+                if (hi[slot] != EMPTY) {
+                    hi[n] = hi[slot];
+                    lo[n] = lo[slot];
+                    counts[n] = counts[slot];
+                    n++;
+                }
+            }
+            sort(0, n - 1);
+            try (RunWriter writer = new RunWriter(run)) {
+                for (int i = 0; i < n; i++) {
+                    writer.write(hi[i], lo[i], counts[i]);
+                }
+            }
+            Arrays.fill(hi, EMPTY);
+            size = 0;
+        }
+
+        private int slot(long h, int l) {
+            return (int) LongIntMap.mix(h ^ (l * 0x9E3779B97F4A7C15L)) & mask;
+        }
+
+        private void allocate(int capacity) {
+            hi = new long[capacity];
+            lo = new int[capacity];
+            counts = new int[capacity];
+            Arrays.fill(hi, EMPTY);
+            mask = capacity - 1;
+            size = 0;
+        }
+
+        private void rehash(int capacity) {
+            long[] oldHi = hi;
+            int[] oldLo = lo;
+            int[] oldCounts = counts;
+            allocate(capacity);
+            for (int i = 0; i < oldHi.length; i++) {
+                if (oldHi[i] != EMPTY) {
+                    int slot = slot(oldHi[i], oldLo[i]);
+                    while (hi[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    hi[slot] = oldHi[i];
+                    lo[slot] = oldLo[i];
+                    counts[slot] = oldCounts[i];
+                    size++;
+                }
+            }
+        }
+
+        private void sort(int from, int to) {
+            while (to - from > 16) {
+                int mid = (from + to) >>> 1;
+                // median of three as pivot
+                if (less(mid, from)) {
+                    swap(mid, from);
+                }
+                if (less(to, from)) {
+                    swap(to, from);
+                }
+                if (less(to, mid)) {
+                    swap(to, mid);
+                }
+                long pivotHi = hi[mid];
+                int pivotLo = lo[mid];
+                int i = from;
+                int j = to;
+                while (i <= j) {
+                    while (compare(i, pivotHi, pivotLo) < 0) {
+                        i++;
+                    }
+                    while (compare(j, pivotHi, pivotLo) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(i++, j--);
+                    }
+                }
+                // recurse into the smaller half
+                if (j - from < to - i) {
+                    sort(from, j);
+                    from = i;
+                } else {
+                    sort(i, to);
+                    to = j;
+                }
+            }
+            for (int i = from + 1; i <= to; i++) {
+                for (int k = i; k > from && less(k, k - 1); k--) {
+                    swap(k, k - 1);
+                }
+            }
+        }
+
+        private int compare(int i, long h, int l) {
+            return hi[i] != h ? Long.compare(hi[i], h) : Integer.compare(lo[i], l);
+        }
+
+        private boolean less(int i, int k) {
+            return compare(i, hi[k], lo[k]) < 0;
+        }
+
+        private void swap(int i, int k) {
+            long h = hi[i];
+            hi[i] = hi[k];
+            hi[k] = h;
+            int l = lo[i];
+            lo[i] = lo[k];
+            lo[k] = l;
+            int c = counts[i];
+            counts[i] = counts[k];
+            counts[k] = c;
+        }
+    }
+
+    /*
+     * Run file : {long hi, int lo, int count}* sorted by (hi, lo).
+     */
+    private static final class RunWriter implements AutoCloseable {
+        private final DataOutputStream out;
+
+        RunWriter(Path path) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        }
+
+        void write(long hi, int lo, int count) throws IOException {
+            out.writeLong(hi);
+            out.writeInt(lo);
+            out.writeInt(count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class RunReader implements AutoCloseable {
+        private final DataInputStream in;
+        long hi;
+        int lo;
+        int count;
+
+        RunReader(Path path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            try {
+                hi = in.readLong();
+            } catch (EOFException x) {
+                return false;
+            }
+            lo = in.readInt();
+            count = in.readInt();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: NGramCounter text-file output.tsv [threads] [minCount] [maxEntries]");
+            System.exit(1);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int minCount = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        long maxEntries = args.length > 4 ? Long.parseLong(args[4]) : 32L << 20;
+        NGramCounter counter = new NGramCounter(threads, maxEntries, minCount, Paths.get(System.getProperty("java.io.tmpdir")));
+        if (args[1].equals("-")) {
+            Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            counter.count(args[0], out);
+            out.flush();
+        } else {
+            counter.count(args[0], args[1]);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package real_wsdm;
+
+/**
+ * Lookup table for external n-gram features (wiki n-grams, wiki titles, ...).
+ * <p>
+ * Every table has its own dictionary of (already stemmed) terms. Callers map
+ * the stemmed query terms to term ids once with {@link #termId} and then look
+ * up unigrams, bigrams and trigrams by id, without allocating.
+ * <p>
+ * Ids are packed into long keys: a bigram is (id1 &lt;&lt; 32 | id2); a trigram
+ * is (index of its leading bigram &lt;&lt; 32 | id3), every leading bigram of a
+ * trigram gets an index even when the bigram itself has no value.
+ *
+ * @author fsqcds
+ */
+public interface NGramTable {
+
+    /**
+     * Returned by {@link #get} for n-grams that are not in the table.
+     */
+    int MISSING = -1;
+
+    /**
+     * Returned by {@link #termId} for terms that are not in the dictionary.
+     */
+    int UNKNOWN_TERM = -1;
+
+    /**
+     * @return id of the stemmed term, or {@link #UNKNOWN_TERM}
+     */
+    int termId(String stemmedTerm);
+
+    /**
+     * @return value of the n-gram ids[offset .. offset + order - 1], or {@link #MISSING}
+     */
+    int get(int[] ids, int offset, int order);
+
+    /**
+     * @return number of n-grams in the table
+     */
+    long size();
+
+    /**
+     * @return the table to use for a consistent series of lookups (see {@link ReloadableNGramTable})
+     */
+    default NGramTable current() {
+        return this;
+    }
+
+    static long pack(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return 64 bit hash of the n-gram ids[offset .. offset + order - 1],
+     * independent of the table layout
+     */
+    static long hash(int[] ids, int offset, int order) {
+        long h = order;
+        for (int i = offset; i < offset + order; i++) {
+            h = LongIntMap.mix(h * 0x9E3779B97F4A7C15L + ids[i]);
+        }
+        return h;
+    }
+}
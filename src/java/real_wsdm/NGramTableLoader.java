@@ -0,0 +1,377 @@
+package real_wsdm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Parallel loader for TSV n-gram files ("gram gram\tcount" per line).
+ * <p>
+ * The file is split into line aligned byte ranges that are parsed on all
+ * cores straight from the mapped file: no regex, and no String per line (a
+ * term String is only created the first time a chunk sees the term). Every
+ * chunk builds its own small dictionary and id arrays, the chunks are then
+ * merged in file order into a {@link HashNGramTable}.
+ * <p>
+ * Columns after the count are ignored, as the line.split reader did. Malformed
+ * lines (no tab, bad count, empty term) are counted and the first few are
+ * logged with their byte offset instead of failing the whole load; so are
+ * lines with the count -1, which lookups could not tell from
+ * {@link NGramTable#MISSING}.
+ *
+ * @author fsqcds
+ */
+public class NGramTableLoader {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+    private static final long MAX_CHUNK = 1L << 30;
+    private static final long MIN_CHUNK = 1L << 20;
+    private static final int MAX_REPORTED = 10;
+
+    public static HashNGramTable load(String path) throws IOException {
+        return load(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static HashNGramTable load(String path, int threads) throws IOException {
+        long start = System.nanoTime();
+        HashNGramTable table = new HashNGramTable();
+        long lines = 0;
+        long malformed = 0;
+        long skipped = 0;
+        List<String> examples = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel, Math.max(1, threads));
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+            try {
+                List<Future<Chunk>> chunks = new ArrayList<>();
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    long from = bounds[i];
+                    long to = bounds[i + 1];
+                    chunks.add(pool.submit(() -> Chunk.parse(channel, from, to)));
+                }
+                // merge in file order : later lines win, as with the sequential reader
+                for (Future<Chunk> future : chunks) {
+                    Chunk chunk = future.get();
+                    chunk.mergeInto(table);
+                    lines += chunk.lines;
+                    malformed += chunk.malformed;
+                    skipped += chunk.skipped;
+                    for (String example : chunk.examples) {
+                        if (examples.size() < MAX_REPORTED) {
+                            examples.add(example);
+                        }
+                    }
+                }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new IOException(String.format("interrupted while loading %s", path), x);
+            } catch (ExecutionException x) {
+                if (x.getCause() instanceof IOException) {
+                    throw (IOException) x.getCause();
+                }
+                throw new IOException(String.format("failed to load %s", path), x.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        logger.info(String.format("Loaded %d n-grams (%d terms) from %s in %.2fs (%.0f lines/s, %d threads)",
+                table.size(), table.terms.size(), path, seconds, lines / Math.max(seconds, 1e-9), threads));
+        if (skipped > 0) {
+            logger.info(String.format("%s: skipped %d n-grams longer than trigrams", path, skipped));
+        }
+        if (malformed > 0) {
+            logger.warning(String.format("%s: %d malformed lines, e.g.%n  %s", path, malformed, String.join("\n  ", examples)));
+        }
+        return table;
+    }
+
+    /*
+     * Splits the file into ranges that start right after a newline.
+     */
+    private static long[] chunkBounds(FileChannel channel, int threads) throws IOException {
+        long size = channel.size();
+        long chunks = Math.max(threads * 4L, (size + MAX_CHUNK - 1) / MAX_CHUNK);
+        chunks = Math.max(1, Math.min(chunks, (size + MIN_CHUNK - 1) / MIN_CHUNK));
+        long step = Math.min(MAX_CHUNK, (size + chunks - 1) / chunks);
+
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long pos = step;
+        while (pos < size) {
+            long next = -1;
+            long scan = pos;
+            while (next < 0 && scan < size) {
+                buffer.clear();
+                int read = channel.read(buffer, scan);
+                if (read <= 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        next = scan + i + 1;
+                        break;
+                    }
+                }
+                scan += read;
+            }
+            if (next < 0 || next >= size) {
+                break;
+            }
+            bounds.add(next);
+            pos = next + step;
+        }
+        bounds.add(size);
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /*
+     * Parse result of one byte range : local term dictionary and n-grams by local id.
+     */
+    private static final class Chunk {
+        private final long start;
+        // local dictionary : term bytes in a pool, open addressing on their hash
+        private byte[] pool = new byte[1 << 16];
+        private int poolSize;
+        private int[] termOffset = new int[1024];
+        private int[] termLength = new int[1024];
+        private int[] termHash = new int[1024];
+        private int terms;
+        private int[] slots = new int[2048];
+        // flat (id.., value) tuples per order
+        private final IntList[] ngrams = {null, new IntList(), new IntList(), new IntList()};
+        private final int[] ids = new int[3];
+
+        long lines;
+        long malformed;
+        long skipped;
+        final List<String> examples = new ArrayList<>();
+
+        private Chunk(long start) {
+            this.start = start;
+        }
+
+        static Chunk parse(FileChannel channel, long from, long to) throws IOException {
+            Chunk chunk = new Chunk(from);
+            if (to <= from) {
+                return chunk;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            int limit = buffer.limit();
+            int pos = 0;
+            while (pos < limit) {
+                int end = pos;
+                while (end < limit && buffer.get(end) != '\n') {
+                    end++;
+                }
+                int lineEnd = end;
+                if (lineEnd > pos && buffer.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+                chunk.lines++;
+                chunk.parseLine(buffer, pos, lineEnd);
+                pos = end + 1;
+            }
+            return chunk;
+        }
+
+        private void parseLine(ByteBuffer buffer, int from, int to) {
+            int tab = from;
+            while (tab < to && buffer.get(tab) != '\t') {
+                tab++;
+            }
+            if (tab >= to) {
+                malformed(buffer, from, to);
+                return;
+            }
+
+            // count : optional sign and digits, surrounding blanks allowed,
+            // anything after the next tab is ignored
+            int pos = tab + 1;
+            while (pos < to && buffer.get(pos) == ' ') {
+                pos++;
+            }
+            boolean negative = pos < to && buffer.get(pos) == '-';
+            if (negative) {
+                pos++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (pos < to && buffer.get(pos) >= '0' && buffer.get(pos) <= '9') {
+                value = Math.min(value * 10 + (buffer.get(pos) - '0'), 1L << 32);
+                digits++;
+                pos++;
+            }
+            while (pos < to && buffer.get(pos) == ' ') {
+                pos++;
+            }
+            if (negative) {
+                value = -value;
+            }
+            if (digits == 0 || (pos != to && buffer.get(pos) != '\t')
+                    || value > Integer.MAX_VALUE || value < Integer.MIN_VALUE || value == NGramTable.MISSING) {
+                malformed(buffer, from, to);
+                return;
+            }
+
+            // terms
+            int order = 0;
+            int termStart = from;
+            for (int i = from; i <= tab; i++) {
+                if (i == tab || buffer.get(i) == ' ') {
+                    if (i == termStart) {
+                        malformed(buffer, from, to);
+                        return;
+                    }
+                    if (order == 3) {
+                        skipped++;
+                        return;
+                    }
+                    ids[order++] = term(buffer, termStart, i);
+                    termStart = i + 1;
+                }
+            }
+
+            IntList list = ngrams[order];
+            for (int i = 0; i < order; i++) {
+                list.add(ids[i]);
+            }
+            list.add((int) value);
+        }
+
+        private void malformed(ByteBuffer buffer, int from, int to) {
+            malformed++;
+            if (examples.size() < MAX_REPORTED) {
+                byte[] line = new byte[Math.min(to - from, 80)];
+                for (int i = 0; i < line.length; i++) {
+                    line[i] = buffer.get(from + i);
+                }
+                examples.add(String.format("byte %d: %s", start + from, new String(line, StandardCharsets.UTF_8)));
+            }
+        }
+
+        /*
+         * @return local id of the term bytes [from, to), added if new
+         */
+        private int term(ByteBuffer buffer, int from, int to) {
+            int hash = 0x811c9dc5;
+            for (int i = from; i < to; i++) {
+                hash ^= buffer.get(i) & 0xFF;
+                hash *= 0x01000193;
+            }
+            int mask = slots.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if (id < 0) {
+                    return addTerm(buffer, from, to, hash);
+                }
+                if (termHash[id] == hash && equals(id, buffer, from, to)) {
+                    return id;
+                }
+            }
+        }
+
+        private boolean equals(int id, ByteBuffer buffer, int from, int to) {
+            if (termLength[id] != to - from) {
+                return false;
+            }
+            int offset = termOffset[id];
+            for (int i = from; i < to; i++) {
+                if (pool[offset++] != buffer.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int addTerm(ByteBuffer buffer, int from, int to, int hash) {
+            int id = terms++;
+            if (id == termOffset.length) {
+                termOffset = Arrays.copyOf(termOffset, id * 2);
+                termLength = Arrays.copyOf(termLength, id * 2);
+                termHash = Arrays.copyOf(termHash, id * 2);
+            }
+            int length = to - from;
+            if (poolSize + length > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + length));
+            }
+            for (int i = from; i < to; i++) {
+                pool[poolSize + i - from] = buffer.get(i);
+            }
+            termOffset[id] = poolSize;
+            termLength[id] = length;
+            termHash[id] = hash;
+            poolSize += length;
+
+            if (2 * terms > slots.length) {
+                slots = new int[slots.length * 2];
+                for (int t = 0; t < terms; t++) {
+                    link(t);
+                }
+            } else {
+                link(id);
+            }
+            return id;
+        }
+
+        private void link(int id) {
+            int mask = slots.length - 1;
+            for (int slot = termHash[id] & mask; ; slot = (slot + 1) & mask) {
+                if (slots[slot] == 0) {
+                    slots[slot] = id + 1;
+                    return;
+                }
+            }
+        }
+
+        void mergeInto(HashNGramTable table) {
+            int[] global = new int[terms];
+            for (int id = 0; id < terms; id++) {
+                global[id] = table.addTerm(new String(pool, termOffset[id], termLength[id], StandardCharsets.UTF_8));
+            }
+            IntList unigrams = ngrams[1];
+            for (int i = 0; i < unigrams.size; i += 2) {
+                table.putUnigram(global[unigrams.values[i]], unigrams.values[i + 1]);
+            }
+            IntList bigrams = ngrams[2];
+            for (int i = 0; i < bigrams.size; i += 3) {
+                table.putBigram(global[bigrams.values[i]], global[bigrams.values[i + 1]], bigrams.values[i + 2]);
+            }
+            IntList trigrams = ngrams[3];
+            for (int i = 0; i < trigrams.size; i += 4) {
+                table.putTrigram(global[trigrams.values[i]], global[trigrams.values[i + 1]], global[trigrams.values[i + 2]], trigrams.values[i + 3]);
+            }
+        }
+    }
+
+    private static final class IntList {
+        int[] values = new int[1024];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
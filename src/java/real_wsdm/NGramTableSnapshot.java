@@ -0,0 +1,365 @@
+package real_wsdm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a {@link HashNGramTable} loaded from a TSV file, written
+ * next to the source as "&lt;path&gt;.snapshot".
+ * <p>
+ * The snapshot records the source path, size and modification time; it is
+ * only used while they still match, otherwise the TSV is parsed again (and the
+ * snapshot rewritten). The arrays of the table are written and read in bulk
+ * through a FileChannel, and the whole file is covered by a CRC32 so that a
+ * truncated or corrupted snapshot is never used.
+ * <p>
+ * Layout (big-endian): <br>
+ * int magic, int version, int pathLength, byte path[pathLength], long sourceSize, long sourceModified, long entries <br>
+ * int terms, {int length, byte utf8[length]}[terms], int unigramValues[terms] <br>
+ * int bigramCapacity, int bigramSize, long keys[bigramCapacity], int values[bigramCapacity], int bigramValues[bigramSize] <br>
+ * int trigramCapacity, int trigramSize, long keys[trigramCapacity], int values[trigramCapacity] <br>
+ * long crc32 <br>
+ *
+ * @author fsqcds
+ */
+public class NGramTableSnapshot {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+    static final int MAGIC = 0x52575353; // "RWSS"
+    static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 24;
+
+    public static String snapshotPath(String sourcePath) {
+        return sourcePath + ".snapshot";
+    }
+
+    /**
+     * @return the table of a valid, up to date snapshot of the source, or null
+     */
+    public static HashNGramTable load(String sourcePath) {
+        Path source = Paths.get(sourcePath).toAbsolutePath().normalize();
+        Path snapshot = Paths.get(snapshotPath(sourcePath));
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            Reader in = new Reader(channel);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                logger.info(String.format("Ignoring %s : unknown format or version", snapshot));
+                return null;
+            }
+            String path = new String(in.getBytes(in.count(1)), StandardCharsets.UTF_8);
+            long size = in.getLong();
+            long modified = in.getLong();
+            if (!path.equals(source.toString()) || size != Files.size(source)
+                    || modified != Files.getLastModifiedTime(source).toMillis()) {
+                logger.info(String.format("Ignoring stale snapshot %s", snapshot));
+                return null;
+            }
+            long entries = in.getLong();
+
+            // every count is checked against the bytes left before anything is
+            // allocated : a corrupted count fails like a bad checksum
+            int terms = in.count(4 + 4);
+            List<String> dictionary = new ArrayList<>(terms);
+            for (int i = 0; i < terms; i++) {
+                dictionary.add(new String(in.getBytes(in.count(1)), StandardCharsets.UTF_8));
+            }
+            int[] unigramValues = in.getInts(in.check(terms, 4));
+
+            int bigramCapacity = in.count(8 + 4);
+            int bigramSize = in.size(bigramCapacity);
+            LongIntMap bigrams = new LongIntMap(in.getLongs(bigramCapacity), in.getInts(bigramCapacity), bigramSize);
+            int[] bigramValues = in.getInts(in.check(bigramSize, 4));
+
+            int trigramCapacity = in.count(8 + 4);
+            int trigramSize = in.size(trigramCapacity);
+            LongIntMap trigrams = new LongIntMap(in.getLongs(trigramCapacity), in.getInts(trigramCapacity), trigramSize);
+
+            if (!in.checksumMatches()) {
+                logger.warning(String.format("Ignoring corrupted snapshot %s", snapshot));
+                return null;
+            }
+
+            HashNGramTable table = new HashNGramTable(dictionary, unigramValues, bigrams, bigramValues, trigrams, entries);
+            logger.info(String.format("Loaded %d n-grams from snapshot %s in %.2fs",
+                    entries, snapshot, (System.nanoTime() - start) / 1e9));
+            return table;
+        } catch (NoSuchFileException x) {
+            return null;
+        } catch (IOException | RuntimeException x) {
+            // the caller parses the TSV instead
+            logger.warning(String.format("Ignoring unreadable snapshot %s : %s", snapshot, x));
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot of a table loaded from the source. The file is
+     * written under a temporary name of its own and moved in place, so readers
+     * never see a partial snapshot and processes writing the same snapshot do
+     * not share a temporary file.
+     */
+    public static void write(HashNGramTable table, String sourcePath) throws IOException {
+        Path source = Paths.get(sourcePath).toAbsolutePath().normalize();
+        Path snapshot = Paths.get(snapshotPath(sourcePath)).toAbsolutePath();
+        Path tmp = Files.createTempFile(snapshot.getParent(), snapshot.getFileName() + ".", ".tmp");
+        long start = System.nanoTime();
+
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Writer out = new Writer(channel);
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+                byte[] path = source.toString().getBytes(StandardCharsets.UTF_8);
+                out.putInt(path.length);
+                out.putBytes(path);
+                out.putLong(Files.size(source));
+                out.putLong(Files.getLastModifiedTime(source).toMillis());
+                out.putLong(table.size());
+
+                int terms = table.terms.size();
+                out.putInt(terms);
+                for (String term : table.terms) {
+                    byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+                    out.putInt(bytes.length);
+                    out.putBytes(bytes);
+                }
+                out.putInts(table.unigramValues, terms);
+
+                LongIntMap bigrams = table.bigrams;
+                out.putInt(bigrams.capacity());
+                out.putInt(bigrams.size());
+                out.putLongs(bigrams.keys(), bigrams.capacity());
+                out.putInts(bigrams.values(), bigrams.capacity());
+                out.putInts(table.bigramValues, bigrams.size());
+
+                LongIntMap trigrams = table.trigrams;
+                out.putInt(trigrams.capacity());
+                out.putInt(trigrams.size());
+                out.putLongs(trigrams.keys(), trigrams.capacity());
+                out.putInts(trigrams.values(), trigrams.capacity());
+
+                out.finish();
+            }
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        logger.info(String.format("Wrote snapshot %s in %.2fs", snapshot, (System.nanoTime() - start) / 1e9));
+    }
+
+    /*
+     * Buffered, checksummed channel writer.
+     */
+    private static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putBytes(byte[] values) throws IOException {
+            for (int done = 0; done < values.length; ) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), values.length - done);
+                buffer.put(values, done, n);
+                done += n;
+            }
+        }
+
+        void putInts(int[] values, int length) throws IOException {
+            for (int done = 0; done < length; ) {
+                ensure(4);
+                int n = Math.min(buffer.remaining() / 4, length - done);
+                buffer.asIntBuffer().put(values, done, n);
+                buffer.position(buffer.position() + 4 * n);
+                done += n;
+            }
+        }
+
+        void putLongs(long[] values, int length) throws IOException {
+            for (int done = 0; done < length; ) {
+                ensure(8);
+                int n = Math.min(buffer.remaining() / 8, length - done);
+                buffer.asLongBuffer().put(values, done, n);
+                buffer.position(buffer.position() + 8 * n);
+                done += n;
+            }
+        }
+
+        void finish() throws IOException {
+            flush();
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /*
+     * Buffered, checksummed channel reader (the trailing crc is not data).
+     */
+    private static final class Reader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private long position;
+        private final long dataEnd;
+
+        Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.dataEnd = channel.size() - 8;
+            buffer.limit(0);
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        byte[] getBytes(int length) throws IOException {
+            byte[] values = new byte[length];
+            for (int done = 0; done < length; ) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), length - done);
+                buffer.get(values, done, n);
+                done += n;
+            }
+            return values;
+        }
+
+        int[] getInts(int length) throws IOException {
+            int[] values = new int[length];
+            for (int done = 0; done < length; ) {
+                ensure(4);
+                int n = Math.min(buffer.remaining() / 4, length - done);
+                buffer.asIntBuffer().get(values, done, n);
+                buffer.position(buffer.position() + 4 * n);
+                done += n;
+            }
+            return values;
+        }
+
+        long[] getLongs(int length) throws IOException {
+            long[] values = new long[length];
+            for (int done = 0; done < length; ) {
+                ensure(8);
+                int n = Math.min(buffer.remaining() / 8, length - done);
+                buffer.asLongBuffer().get(values, done, n);
+                buffer.position(buffer.position() + 8 * n);
+                done += n;
+            }
+            return values;
+        }
+
+        /**
+         * @return a count of items of at least bytesPerItem bytes each, read
+         * and checked against the bytes left
+         */
+        int count(int bytesPerItem) throws IOException {
+            return check(getInt(), bytesPerItem);
+        }
+
+        int check(int count, int bytesPerItem) throws IOException {
+            if (count < 0 || (long) count * bytesPerItem > remaining()) {
+                throw new IOException(String.format("corrupted snapshot : count %d at %d", count, position - buffer.remaining()));
+            }
+            return count;
+        }
+
+        /**
+         * @return the size of a map of the capacity, read and checked
+         */
+        int size(int capacity) throws IOException {
+            int size = getInt();
+            if (size < 0 || size > capacity) {
+                throw new IOException(String.format("corrupted snapshot : %d entries in %d slots", size, capacity));
+            }
+            return size;
+        }
+
+        private long remaining() {
+            return dataEnd - position + buffer.remaining();
+        }
+
+        boolean checksumMatches() throws IOException {
+            if (buffer.hasRemaining() || position != dataEnd) {
+                return false;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(8);
+            while (trailer.hasRemaining() && channel.read(trailer, dataEnd + trailer.position()) > 0) {
+            }
+            trailer.flip();
+            return trailer.remaining() == 8 && trailer.getLong() == crc.getValue();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            long limit = Math.min(dataEnd - position, buffer.remaining());
+            buffer.limit(buffer.position() + (int) limit);
+            int start = buffer.position();
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+            }
+            ByteBuffer fresh = buffer.duplicate();
+            fresh.position(start);
+            fresh.limit(buffer.position());
+            crc.update(fresh);
+            buffer.flip();
+            if (buffer.remaining() < bytes) {
+                throw new IOException("truncated snapshot");
+            }
+        }
+    }
+}
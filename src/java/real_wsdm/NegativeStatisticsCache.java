@@ -0,0 +1,92 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.index.stats.NodeStatistics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide set of the statistics nodes that do not occur in the index
+ * (nodeFrequency == 0), mostly #od phrases of verbose queries.
+ * <p>
+ * Only the 64 bit hash of a key is kept (8 bytes per node, against a few
+ * hundred in the {@link NodeStatisticsCache}), so the zero phrases do not
+ * evict useful statistics and are answered without touching the index or
+ * taking a lock. Once "rwsdmNegativeStatisticsCacheSize" nodes are known,
+ * new ones are no longer added : nothing is evicted.
+ * <p>
+ * Off by default (size 0) : keys are tied to the index path, not to its
+ * contents, so a process whose index is rebuilt in place would keep
+ * answering 0 for nodes the new index has. Turn it on for processes that
+ * serve a fixed index, e.g. 1000000 nodes (16 MB of slots).
+ *
+ * @author fsqcds
+ */
+public class NegativeStatisticsCache {
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final int capacity;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+
+    public NegativeStatisticsCache(int capacity) {
+        this.capacity = capacity;
+        this.slots = new AtomicLongArray(Integer.highestOneBit(Math.max(8, capacity * 2) - 1) << 1);
+        this.mask = slots.length() - 1;
+    }
+
+    /**
+     * @return zero statistics if the node is known not to occur, null otherwise
+     */
+    public NodeStatistics get(StatisticsKey key) {
+        long hash = key.longHash();
+        for (int slot = (int) LongIntMap.mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            long h = slots.get(slot);
+            if (h == hash) {
+                hits.increment();
+                return new NodeStatistics();
+            }
+            if (h == 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Remembers the node if its statistics are zero.
+     */
+    public void record(StatisticsKey key, NodeStatistics stats) {
+        if (stats == null || stats.nodeFrequency != 0 || size.get() >= capacity) {
+            return;
+        }
+        long hash = key.longHash();
+        for (int slot = (int) LongIntMap.mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            long h = slots.get(slot);
+            if (h == hash) {
+                return;
+            }
+            if (h == 0) {
+                if (slots.compareAndSet(slot, 0, hash)) {
+                    size.incrementAndGet();
+                    return;
+                }
+                // lost the slot to another thread : look at it again
+                slot = (slot - 1) & mask;
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NegativeStatisticsCache[size=%d/%d, hits=%d]", size(), capacity, hitCount());
+    }
+}
@@ -0,0 +1,151 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.index.stats.NodeStatistics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe LRU cache of node statistics shared by all
+ * RealWSDMTraversal instances of the process.
+ * <p>
+ * The cache is split into independently locked segments, each of them an
+ * access ordered LinkedHashMap that evicts its least recently used entry once
+ * it is full. Loads happen outside of the segment lock, so a slow index
+ * lookup never blocks readers of other keys.
+ *
+ * @author fsqcds
+ */
+public class NodeStatisticsCache {
+    private static final int SEGMENTS = 16;
+
+    public interface Loader {
+        NodeStatistics load() throws Exception;
+    }
+
+    private final Segment[] segments;
+    private final long capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public NodeStatisticsCache(long capacity) {
+        this.capacity = capacity;
+        this.segments = new Segment[SEGMENTS];
+        int segmentCapacity = (int) Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentCapacity);
+        }
+    }
+
+    /**
+     * @return cached statistics for the key, or the result of the loader
+     * (which is then cached)
+     */
+    public NodeStatistics get(StatisticsKey key, Loader loader) throws Exception {
+        NodeStatistics stats = getIfPresent(key);
+        if (stats == null) {
+            stats = loader.load();
+            put(key, stats);
+        }
+        return stats;
+    }
+
+    public NodeStatistics getIfPresent(StatisticsKey key) {
+        Segment segment = segmentFor(key);
+        NodeStatistics stats;
+        synchronized (segment) {
+            stats = segment.get(key);
+        }
+        if (stats == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return stats;
+    }
+
+    /**
+     * Checks for the key without touching the hit/miss counters.
+     */
+    public boolean containsKey(StatisticsKey key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.containsKey(key);
+        }
+    }
+
+    public void put(StatisticsKey key, NodeStatistics stats) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, stats);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NodeStatisticsCache[size=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                size(), capacity, hitCount(), missCount(), evictionCount());
+    }
+
+    private Segment segmentFor(StatisticsKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private class Segment extends LinkedHashMap<StatisticsKey, NodeStatistics> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<StatisticsKey, NodeStatistics> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.index.stats.NodeStatistics;
+import org.lemurproject.galago.core.parse.Document;
+import org.lemurproject.galago.core.parse.TagTokenizer;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.RetrievalFactory;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.util.TextPartAssigner;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Precomputed statistics of #od:1 phrase nodes, read by the traversal before
+ * the index ("rwsdmPhraseStatistics" : sidecar path). Bigram and trigram
+ * LOGTF / LOGDF features otherwise intersect positional postings at query
+ * time, the most expensive part of the rewrite for frequent terms.
+ * <p>
+ * The sidecar is built offline from a query log or a list of candidate
+ * n-grams : every line is tokenized like a query and the statistics of all
+ * its bigrams and trigrams (including the zero ones) are fetched from the
+ * index. Nodes are identified by a 64 bit hash of (operator, part, terms) and
+ * sorted by it, lookups are a binary search.
+ * <p>
+ * The sidecar is tied to the index it was built from by a signature of the
+ * files of the index directory (names, sizes, modification times) : a
+ * rebuilt index makes the traversal ignore the sidecar, with a warning.
+ * <p>
+ * Layout (big-endian): <br>
+ * int magic, int version, long index signature, UTF index path, int count <br>
+ * {long hash, long nodeFrequency, long nodeDocumentCount}[count], sorted by hash <br>
+ * <pre>
+ *   java -cp ... real_wsdm.PhraseStatisticsSidecar /path/to/index queries.txt index.phrases [threads] [part]
+ * </pre>
+ *
+ * @author fsqcds
+ */
+public class PhraseStatisticsSidecar {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+
+    static final int MAGIC = 0x52575053; // "RWPS"
+    static final int VERSION = 1;
+    private static final String OPERATOR = "od:1";
+
+    private final String path;
+    private final long indexSignature;
+    private final String indexPath;
+    private final long[] hashes;
+    private final long[] frequencies;
+    private final long[] documentCounts;
+
+    private PhraseStatisticsSidecar(String path, long indexSignature, String indexPath,
+                                    long[] hashes, long[] frequencies, long[] documentCounts) {
+        this.path = path;
+        this.indexSignature = indexSignature;
+        this.indexPath = indexPath;
+        this.hashes = hashes;
+        this.frequencies = frequencies;
+        this.documentCounts = documentCounts;
+    }
+
+    public static PhraseStatisticsSidecar open(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path)), 1 << 20))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(String.format("%s is not a phrase statistics sidecar", path));
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("%s has unsupported sidecar version %d, build it again", path, version));
+            }
+            long signature = in.readLong();
+            String indexPath = in.readUTF();
+            int count = in.readInt();
+            long[] hashes = new long[count];
+            long[] frequencies = new long[count];
+            long[] documentCounts = new long[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = in.readLong();
+                frequencies[i] = in.readLong();
+                documentCounts[i] = in.readLong();
+            }
+            logger.info(String.format("Loaded statistics of %d phrases of %s from %s", count, indexPath, path));
+            return new PhraseStatisticsSidecar(path, signature, indexPath, hashes, frequencies, documentCounts);
+        }
+    }
+
+    /**
+     * @return true if the sidecar was built from the index as it is now
+     */
+    public boolean matches(String indexPath) {
+        try {
+            return indexSignature(indexPath) == indexSignature;
+        } catch (IOException x) {
+            System.err.format("IOException: %s%n", x);
+            return false;
+        }
+    }
+
+    /**
+     * @return the precomputed statistics of the node, or null if the sidecar
+     * does not have them
+     */
+    public NodeStatistics get(StatisticsKey key) {
+        if (!key.operator.equals(OPERATOR) || !key.group.isEmpty()) {
+            return null;
+        }
+        int i = Arrays.binarySearch(hashes, hash(key.part, key.terms));
+        if (i < 0) {
+            return null;
+        }
+        NodeStatistics stats = new NodeStatistics();
+        stats.nodeFrequency = frequencies[i];
+        stats.nodeDocumentCount = documentCounts[i];
+        return stats;
+    }
+
+    public int size() {
+        return hashes.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%d phrases of %s)", path, hashes.length, indexPath);
+    }
+
+    static long hash(String part, String[] terms) {
+        long h = 0xcbf29ce484222325L;
+        h = StatisticsKey.fnv(h, OPERATOR);
+        h = StatisticsKey.fnv(h, part);
+        for (String term : terms) {
+            h = StatisticsKey.fnv(h, term);
+        }
+        return LongIntMap.mix(h);
+    }
+
+    /*
+     * Names, sizes and modification times of the files of the index directory.
+     */
+    static long indexSignature(String indexPath) throws IOException {
+        File[] files = new File(indexPath).listFiles();
+        if (files == null) {
+            throw new IOException(String.format("%s is not an index directory", indexPath));
+        }
+        Arrays.sort(files);
+        long h = 0xcbf29ce484222325L;
+        for (File file : files) {
+            h = StatisticsKey.fnv(h, file.getName());
+            h = LongIntMap.mix(h ^ (file.isFile() ? file.length() : -1));
+            h = LongIntMap.mix(h ^ file.lastModified());
+        }
+        return h;
+    }
+
+    /**
+     * Builds the sidecar of the bigrams and trigrams of every line of candidatesPath.
+     *
+     * @param part extents part of the phrases, null = the part the traversal
+     *             assigns with the default parameters of the index
+     */
+    public static void build(String indexPath, String candidatesPath, String sidecarPath, int threads, String part) throws Exception {
+        Retrieval retrieval = RetrievalFactory.instance(indexPath, Parameters.create());
+        try {
+            build(retrieval, indexPath, candidatesPath, sidecarPath, threads, part);
+        } finally {
+            retrieval.close();
+        }
+    }
+
+    /**
+     * Builds the sidecar from an open retrieval of the index at indexPath
+     * (left open).
+     */
+    public static void build(Retrieval retrieval, String indexPath, String candidatesPath, String sidecarPath, int threads, String part) throws Exception {
+        long start = System.nanoTime();
+        Set<List<String>> phrases = new LinkedHashSet<>();
+        TagTokenizer tokenizer = new TagTokenizer();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(candidatesPath), StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                Document document = new Document();
+                document.text = line;
+                tokenizer.process(document);
+                List<String> terms = document.terms;
+                for (int order = 2; order <= FeatureEngine.MAX_ORDER; order++) {
+                    for (int i = 0; i + order <= terms.size(); i++) {
+                        phrases.add(new ArrayList<>(terms.subList(i, i + order)));
+                    }
+                }
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            if (part == null) {
+                part = TextPartAssigner.assignPart(new Node("extents", "a"), retrieval.getGlobalParameters(),
+                        retrieval.getAvailableParts()).getNodeParameters().get("part", "");
+            }
+            List<Future<NodeStatistics>> futures = new ArrayList<>(phrases.size());
+            long[] keys = new long[phrases.size()];
+            int n = 0;
+            for (List<String> phrase : phrases) {
+                String[] terms = phrase.toArray(new String[0]);
+                keys[n++] = hash(part, terms);
+                Node node = new StatisticsKey(indexPath, OPERATOR, part, "", terms).toNode();
+                futures.add(executor.submit(() -> retrieval.getNodeStatistics(node)));
+            }
+
+            long[][] records = new long[n][];
+            for (int i = 0; i < n; i++) {
+                NodeStatistics stats = futures.get(i).get();
+                records[i] = new long[]{keys[i], stats.nodeFrequency, stats.nodeDocumentCount};
+            }
+            Arrays.sort(records, (a, b) -> Long.compare(a[0], b[0]));
+            // a hash collision keeps one of the phrases
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (count == 0 || records[i][0] != records[count - 1][0]) {
+                    records[count++] = records[i];
+                }
+            }
+
+            Path tmp = Paths.get(sidecarPath + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 20))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(indexSignature(indexPath));
+                out.writeUTF(new File(indexPath).getAbsolutePath());
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(records[i][0]);
+                    out.writeLong(records[i][1]);
+                    out.writeLong(records[i][2]);
+                }
+            }
+            Files.move(tmp, Paths.get(sidecarPath), StandardCopyOption.REPLACE_EXISTING);
+            logger.info(String.format("Wrote statistics of %d phrases (part %s) of %s into %s in %.1fs",
+                    count, part, indexPath, sidecarPath, (System.nanoTime() - start) / 1e9));
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof Exception) {
+                throw (Exception) x.getCause();
+            }
+            throw x;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("usage: PhraseStatisticsSidecar index candidates.txt out.phrases [threads] [part]");
+            System.exit(1);
+        }
+        build(args[0], args[1], args[2],
+                args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors(),
+                args.length > 4 ? args[4] : null);
+    }
+}
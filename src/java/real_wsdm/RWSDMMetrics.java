@@ -0,0 +1,382 @@
+package real_wsdm;
+
+import real_wsdm.RealWSDMTraversal.RWSDMFeatureType;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms of the rwsdm rewrite, cheap enough to keep
+ * switched on under load (unlike "verboseRWSDM").
+ * <p>
+ * Recorded : rewrite latency per rwsdm node, index statistics loads, time per
+ * feature value by feature type and n-gram order, external lookups and hits
+ * by order, the hit rates of the statistics and feature vector caches, and
+ * the proximity clauses kept and dropped by pruning (see {@link ClausePruner}).
+ * <p>
+ * Metrics are off until {@link #enable} is called (global parameter
+ * "rwsdmMetrics" : true). They are then published over JMX as
+ * "real_wsdm:type=RWSDMMetrics" and, every "rwsdmMetricsInterval" seconds
+ * (default 60, 0 = never), logged as a report.
+ *
+ * @author fsqcds
+ */
+public final class RWSDMMetrics implements RWSDMMetricsMXBean {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+    public static final String OBJECT_NAME = "real_wsdm:type=RWSDMMetrics";
+    private static final RWSDMFeatureType[] TYPES = RWSDMFeatureType.values();
+
+    private static volatile RWSDMMetrics instance;
+    private static ScheduledExecutorService reporter;
+
+    private final Histogram rewrites = new Histogram();
+    private final Histogram statisticsLoads = new Histogram();
+    private final Histogram[][] features = new Histogram[TYPES.length][FeatureEngine.MAX_ORDER + 1];
+    private final LongAdder[] externalLookups = new LongAdder[FeatureEngine.MAX_ORDER + 1];
+    private final LongAdder[] externalHits = new LongAdder[FeatureEngine.MAX_ORDER + 1];
+    private final LongAdder[] clausesKept = new LongAdder[FeatureEngine.MAX_ORDER + 1];
+    private final LongAdder[] clausesDropped = new LongAdder[FeatureEngine.MAX_ORDER + 1];
+    private final LongAdder vectorHits = new LongAdder();
+    private final LongAdder vectorMisses = new LongAdder();
+    private final Map<String, LongAdder> groupTimeouts = new ConcurrentHashMap<>();
+
+    private RWSDMMetrics() {
+        for (int t = 0; t < TYPES.length; t++) {
+            for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+                features[t][order] = new Histogram();
+            }
+        }
+        for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+            externalLookups[order] = new LongAdder();
+            externalHits[order] = new LongAdder();
+            clausesKept[order] = new LongAdder();
+            clausesDropped[order] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the metrics, or null while they are switched off
+     */
+    public static RWSDMMetrics current() {
+        return instance;
+    }
+
+    /**
+     * Switches the metrics on (only the first call has an effect).
+     *
+     * @param reportSeconds interval of the logged report, 0 = no report
+     */
+    public static synchronized RWSDMMetrics enable(long reportSeconds) {
+        if (instance != null) {
+            return instance;
+        }
+        RWSDMMetrics metrics = new RWSDMMetrics();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException x) {
+            logger.warning(String.format("Could not register %s : %s", OBJECT_NAME, x));
+        }
+        if (reportSeconds > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "rwsdm-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            reporter.scheduleAtFixedRate(() -> logger.info(metrics.report()), reportSeconds, reportSeconds, TimeUnit.SECONDS);
+        }
+        instance = metrics;
+        return metrics;
+    }
+
+    public void rewrite(long nanos) {
+        rewrites.record(nanos);
+    }
+
+    public void statisticsLoad(long nanos) {
+        statisticsLoads.record(nanos);
+    }
+
+    public void feature(RWSDMFeatureType type, int order, long nanos) {
+        features[type.ordinal()][order].record(nanos);
+    }
+
+    public void external(int order, boolean hit) {
+        externalLookups[order].increment();
+        if (hit) {
+            externalHits[order].increment();
+        }
+    }
+
+    public void pruning(int order, int kept, int dropped) {
+        clausesKept[order].add(kept);
+        clausesDropped[order].add(dropped);
+    }
+
+    public void vectorCache(boolean hit) {
+        (hit ? vectorHits : vectorMisses).increment();
+    }
+
+    public void groupTimeout(String group, int unresolved) {
+        groupTimeouts.computeIfAbsent(group, g -> new LongAdder()).add(unresolved);
+    }
+
+    @Override
+    public long getRewriteCount() {
+        return rewrites.count();
+    }
+
+    @Override
+    public double getRewriteMeanMicros() {
+        return rewrites.mean() / 1e3;
+    }
+
+    @Override
+    public double getRewriteP99Micros() {
+        return rewrites.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public long getStatisticsLoadCount() {
+        return statisticsLoads.count();
+    }
+
+    @Override
+    public double getStatisticsLoadMeanMicros() {
+        return statisticsLoads.mean() / 1e3;
+    }
+
+    @Override
+    public double getStatisticsCacheHitRate() {
+        NodeStatisticsCache cache = RealWSDMTraversal.getStatisticsCache();
+        return cache == null ? Double.NaN : rate(cache.hitCount(), cache.hitCount() + cache.missCount());
+    }
+
+    @Override
+    public double getRewriteCacheHitRate() {
+        RewriteCache cache = RealWSDMTraversal.getRewriteCache();
+        return cache == null ? Double.NaN : rate(cache.hitCount(), cache.hitCount() + cache.missCount());
+    }
+
+    @Override
+    public double getFeatureVectorCacheHitRate() {
+        long hits = vectorHits.sum();
+        return rate(hits, hits + vectorMisses.sum());
+    }
+
+    @Override
+    public Map<String, Long> getFeatureCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int t = 0; t < TYPES.length; t++) {
+            for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+                long count = features[t][order].count();
+                if (count > 0) {
+                    counts.put(TYPES[t] + "/" + order, count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getFeatureMeanNanos() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (int t = 0; t < TYPES.length; t++) {
+            for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+                if (features[t][order].count() > 0) {
+                    means.put(TYPES[t] + "/" + order, features[t][order].mean());
+                }
+            }
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getExternalHitRates() {
+        Map<String, Double> rates = new LinkedHashMap<>();
+        for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+            long lookups = externalLookups[order].sum();
+            if (lookups > 0) {
+                rates.put(Integer.toString(order), rate(externalHits[order].sum(), lookups));
+            }
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Long> getPrunedClauses() {
+        Map<String, Long> pruned = new LinkedHashMap<>();
+        for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+            long clauses = clausesKept[order].sum() + clausesDropped[order].sum();
+            if (clauses > 0) {
+                pruned.put(Integer.toString(order), clausesDropped[order].sum());
+            }
+        }
+        return pruned;
+    }
+
+    @Override
+    public Map<String, Long> getGroupTimeouts() {
+        Map<String, Long> timeouts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> group : groupTimeouts.entrySet()) {
+            timeouts.put(group.getKey(), group.getValue().sum());
+        }
+        return timeouts;
+    }
+
+    @Override
+    public String report() {
+        StringBuilder sb = new StringBuilder("rwsdm metrics");
+        sb.append(String.format("%n  rewrite : %s", rewrites));
+        sb.append(String.format("%n  statistics load : %s", statisticsLoads));
+        NodeStatisticsCache cache = RealWSDMTraversal.getStatisticsCache();
+        if (cache != null) {
+            sb.append(String.format("%n  statistics cache : %s", cache));
+        }
+        StatisticsStore store = RealWSDMTraversal.getStatisticsStore();
+        if (store != null) {
+            sb.append(String.format("%n  statistics store : %s", store));
+        }
+        RewriteCache rewriteCache = RealWSDMTraversal.getRewriteCache();
+        if (rewriteCache != null) {
+            sb.append(String.format("%n  rewrite cache : %s", rewriteCache));
+        }
+        long vectors = vectorHits.sum() + vectorMisses.sum();
+        if (vectors > 0) {
+            sb.append(String.format("%n  feature vector cache : %d lookups, hit rate %.3f", vectors, getFeatureVectorCacheHitRate()));
+        }
+        for (int t = 0; t < TYPES.length; t++) {
+            for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+                Histogram h = features[t][order];
+                if (h.count() > 0) {
+                    sb.append(String.format("%n  %s/%d : %s", TYPES[t], order, h));
+                }
+            }
+        }
+        for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+            long lookups = externalLookups[order].sum();
+            if (lookups > 0) {
+                sb.append(String.format("%n  external %d-grams : %d lookups, hit rate %.3f",
+                        order, lookups, rate(externalHits[order].sum(), lookups)));
+            }
+        }
+        for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+            long dropped = clausesDropped[order].sum();
+            long clauses = clausesKept[order].sum() + dropped;
+            if (clauses > 0) {
+                sb.append(String.format("%n  pruned %d-gram clauses : %d of %d (%.3f)",
+                        order, dropped, clauses, rate(dropped, clauses)));
+            }
+        }
+        for (Map.Entry<String, Long> group : getGroupTimeouts().entrySet()) {
+            sb.append(String.format("%n  group %s : %d statistics nodes timed out", group.getKey(), group.getValue()));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        rewrites.reset();
+        statisticsLoads.reset();
+        for (int t = 0; t < TYPES.length; t++) {
+            for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+                features[t][order].reset();
+            }
+        }
+        for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+            externalLookups[order].reset();
+            externalHits[order].reset();
+            clausesKept[order].reset();
+            clausesDropped[order].reset();
+        }
+        vectorHits.reset();
+        vectorMisses.reset();
+        groupTimeouts.clear();
+    }
+
+    private static double rate(long part, long total) {
+        return total == 0 ? Double.NaN : (double) part / total;
+    }
+
+    /*
+     * Lock-free histogram with power of two buckets : bucket b holds [2^b, 2^(b+1)) ns.
+     */
+    static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int b = 0; b < buckets.length; b++) {
+                buckets[b] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long n = Math.max(1, nanos);
+            buckets[63 - Long.numberOfLeadingZeros(n)].increment();
+            count.increment();
+            total.add(n);
+            max.accumulate(n);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double mean() {
+            long c = count.sum();
+            return c == 0 ? Double.NaN : (double) total.sum() / c;
+        }
+
+        /**
+         * @return upper bound of the bucket holding the q quantile
+         */
+        double percentile(double q) {
+            long c = count.sum();
+            if (c == 0) {
+                return Double.NaN;
+            }
+            long rank = (long) Math.ceil(q * c);
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b].sum();
+                if (seen >= rank) {
+                    return Math.min(Math.pow(2, b + 1), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.3fus p50=%.3fus p99=%.3fus max=%.3fus",
+                    count(), mean() / 1e3, percentile(0.5) / 1e3, percentile(0.99) / 1e3, max.get() / 1e3);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package real_wsdm;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link RWSDMMetrics} (object name "real_wsdm:type=RWSDMMetrics").
+ * Times are in microseconds, feature times in nanoseconds.
+ *
+ * @author fsqcds
+ */
+public interface RWSDMMetricsMXBean {
+
+    long getRewriteCount();
+
+    double getRewriteMeanMicros();
+
+    double getRewriteP99Micros();
+
+    long getStatisticsLoadCount();
+
+    double getStatisticsLoadMeanMicros();
+
+    /**
+     * @return hit rate of the statistics cache since it was created (not reset)
+     */
+    double getStatisticsCacheHitRate();
+
+    /**
+     * @return hit rate of the rewrite cache since it was created (not reset)
+     */
+    double getRewriteCacheHitRate();
+
+    double getFeatureVectorCacheHitRate();
+
+    /**
+     * @return number of computed values per "TYPE/order"
+     */
+    Map<String, Long> getFeatureCounts();
+
+    /**
+     * @return mean time per computed value per "TYPE/order"
+     */
+    Map<String, Double> getFeatureMeanNanos();
+
+    /**
+     * @return fraction of external lookups that found the n-gram, per order
+     */
+    Map<String, Double> getExternalHitRates();
+
+    /**
+     * @return number of proximity clauses dropped by pruning, per order
+     */
+    Map<String, Long> getPrunedClauses();
+
+    /**
+     * @return number of statistics nodes left out of rewrites by
+     * "rwsdmGroupTimeout", per group
+     */
+    Map<String, Long> getGroupTimeouts();
+
+    String report();
+
+    void reset();
+}
@@ -1,7 +1,9 @@
 package real_wsdm;
 
-import org.lemurproject.galago.core.index.stats.AggregateStatistic;
+import org.lemurproject.galago.core.index.stats.FieldStatistics;
 import org.lemurproject.galago.core.index.stats.NodeStatistics;
+import org.lemurproject.galago.core.parse.Document;
+import org.lemurproject.galago.core.parse.TagTokenizer;
 import org.lemurproject.galago.core.parse.stem.KrovetzStemmer;
 import org.lemurproject.galago.core.parse.stem.Stemmer;
 import org.lemurproject.galago.core.retrieval.GroupRetrieval;
@@ -15,11 +17,21 @@ import org.lemurproject.galago.utility.Parameters;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * Weighted Sequential Dependency Model model is structurally similar to the
@@ -40,20 +52,100 @@ import java.util.stream.Collectors;
  * unigram : true|false :: can be used on unigrams <br>
  * bigram : true|false :: can be used on bigrams <br>
  * } <br>
+ * <p>
+ * Node statistics are kept in a process-wide LRU cache shared by all traversal
+ * instances (size : "rwsdmStatisticsCacheSize", default 100000 nodes).
+ * With "rwsdmBatchStatistics" : true the statistics of all clauses of a query
+ * are collected first, de-duplicated and fetched in parallel by
+ * "rwsdmStatisticsThreads" threads (default: number of cores) before any
+ * weight is computed.
+ * <p>
+ * "rwsdmFeatureVectorCache" : true keeps the raw feature vector of every
+ * clause (at most "rwsdmFeatureVectorCacheSize", default 1000000 clauses) so
+ * that repeated rewrites with different lambdas (parameter learning) only
+ * compute dot products.
+ * <p>
+ * Statistics nodes that do not occur in the index can also be remembered
+ * apart (see {@link NegativeStatisticsCache}, "rwsdmNegativeStatisticsCacheSize",
+ * default 0 = off), and "rwsdmBloomFilter" : true puts a Bloom
+ * filter in front of the external n-gram tables (see {@link BloomNGramTable}).
+ * <p>
+ * "rwsdmPhraseStatistics" : path of precomputed #od:1 statistics of the index
+ * (see {@link PhraseStatisticsSidecar}), used before the index.
+ * <p>
+ * "rwsdmFusedWindows" : true replaces the #od:1 and #uw windows of every pair
+ * and triple by one {@link FusedWindowIterator}, which reads their positions
+ * once (dirichlet scoring only).
+ * <p>
+ * Low impact bigram and trigram clauses can be dropped before the combine is
+ * built, by weight threshold, top-k per order or clause budget (see
+ * {@link ClausePruner}).
+ * <p>
+ * With "rwsdmGroupFanOut" : true the statistics of the grouped features
+ * (side collections of a GroupRetrieval) are fetched concurrently before the
+ * weights are computed, at most "rwsdmGroupParallelism" lookups at once per
+ * group (default 4). A group that does not answer within "rwsdmGroupTimeout"
+ * ms (default 0 = wait) is left out of the rewrite : its features do not
+ * contribute, and the late statistics still fill the cache for later queries.
+ * <p>
+ * "rwsdmStatisticsStore" : path keeps the resolved statistics across restarts
+ * (see {@link StatisticsStore}), and "rwsdmStatisticsWarmup" : query log (one
+ * query per line) rewrites the logged queries in the background on startup
+ * so that their statistics are loaded before the traffic asks for them.
+ * <p>
+ * "rwsdmRewriteCache" : true keeps the rewritten nodes of repeated queries
+ * (at most "rwsdmRewriteCacheSize", default 10000, see {@link RewriteCache}).
+ * <p>
+ * The traversal is safe to use from several threads at once (see
+ * galago-util/batch-search-parallel): feature files are loaded once per path
+ * even when traversals are created concurrently, and every thread stems with
+ * its own stemmer.
+ * <p>
+ * TSV feature files are parsed once : a binary snapshot is written next to
+ * each of them (see {@link NGramTableSnapshot}) and loaded instead while the
+ * TSV is unchanged. A feature file can also be an approximate table built
+ * from the TSV (see {@link SketchNGramTable}), several times smaller.
+ * <p>
+ * With "rwsdmReloadFeatures" : true, changed feature files are reloaded in
+ * the background and swapped in (checked every "rwsdmReloadInterval"
+ * seconds, default 60) : every rwsdm node is rewritten with the tables that
+ * were current when it started.
+ * <p>
+ * "rwsdmMetrics" : true records timings and hit rates of the rewrite, see
+ * {@link RWSDMMetrics}.
  *
  * @author sjh, fsqcds
  */
 public class RealWSDMTraversal extends Traversal {
     private static final Logger logger = Logger.getLogger("RWSDM");
-    private static Stemmer stemmer = new KrovetzStemmer();
+    // the stemmer keeps internal state : one per thread
+    private static final ThreadLocal<Stemmer> stemmer = ThreadLocal.withInitial(KrovetzStemmer::new);
+    private static volatile NodeStatisticsCache statisticsCache;
+    private static volatile NegativeStatisticsCache negativeStatistics;
+    private static volatile PhraseStatisticsSidecar phraseStatistics;
+    private static volatile RewriteCache rewriteCache;
+    private static volatile StatisticsStore statisticsStore;
+    private static String statisticsStorePath;
+    private static final AtomicBoolean warmupStarted = new AtomicBoolean();
+    private static String phraseStatisticsPath;
+    private static volatile ExecutorService statisticsExecutor;
+    // galago creates a traversal per query : compile the features once per retrieval
+    private static final Map<Retrieval, FeatureEngine> engines = Collections.synchronizedMap(new WeakHashMap<>());
+    // index -> statistics of the document lengths, for the fused windows
+    private static final ConcurrentHashMap<String, FieldStatistics> lengthStatistics = new ConcurrentHashMap<>();
     private Retrieval retrieval;
     private GroupRetrieval gRetrieval;
     private Parameters globalParams;
     private boolean defCombNorm;
     private boolean verbose;
-    private List<RWSDMFeature> uniFeatures;
-    private List<RWSDMFeature> biFeatures;
-    private List<RWSDMFeature> triFeatures;
+    private boolean batchStatistics;
+    private boolean fusedWindows;
+    private boolean groupFanOut;
+    private int groupParallelism;
+    private long groupTimeout;
+    private String indexId;
+    private FeatureEngine engine;
+    private RWSDMMetrics metrics;
 
     public RealWSDMTraversal(Retrieval retrieval) throws Exception {
         if (retrieval instanceof GroupRetrieval) {
@@ -66,33 +158,99 @@ public class RealWSDMTraversal extends Traversal {
         verbose = globalParams.get("verboseRWSDM", false);
         defCombNorm = globalParams.get("norm", false);
 
-        uniFeatures = new ArrayList();
-        biFeatures = new ArrayList();
-        triFeatures = new ArrayList();
+        if (globalParams.isString("index")) {
+            indexId = globalParams.getString("index");
+        } else if (globalParams.isList("index")) {
+            indexId = globalParams.getList("index").toString();
+        } else {
+            indexId = "";
+        }
+        initStatisticsCache(globalParams.get("rwsdmStatisticsCacheSize", 100000L),
+                globalParams.get("rwsdmNegativeStatisticsCacheSize", 0L));
+        if (globalParams.isString("rwsdmPhraseStatistics")) {
+            initPhraseStatistics(globalParams.getString("rwsdmPhraseStatistics"), globalParams);
+        }
+
+        batchStatistics = globalParams.get("rwsdmBatchStatistics", false);
+        fusedWindows = globalParams.get("rwsdmFusedWindows", false);
+        if (globalParams.get("rwsdmRewriteCache", false)) {
+            initRewriteCache(globalParams.get("rwsdmRewriteCacheSize", 10000L));
+        }
+        groupFanOut = gRetrieval != null && globalParams.get("rwsdmGroupFanOut", false);
+        groupParallelism = (int) Math.max(1, globalParams.get("rwsdmGroupParallelism", 4L));
+        groupTimeout = globalParams.get("rwsdmGroupTimeout", 0L);
+        if (batchStatistics || groupFanOut) {
+            initStatisticsExecutor((int) globalParams.get("rwsdmStatisticsThreads", (long) Runtime.getRuntime().availableProcessors()));
+        }
 
-        if (globalParams.isList("rwsdmFeatures", Parameters.class)) {
-            for (Parameters f : (List<Parameters>) globalParams.getList("rwsdmFeatures")) {
-                RWSDMFeature wf = new RWSDMFeature(f);
-                if (wf.unigram) {
-                    uniFeatures.add(wf);
-                }
-                if (wf.bigram) {
-                    biFeatures.add(wf);
-                }
-                if (wf.trigram) {
-                    triFeatures.add(wf);
-                }
+        engine = engines.get(retrieval);
+        if (engine == null) {
+            engine = compileFeatures(retrieval, globalParams);
+        }
+        if (globalParams.get("rwsdmReloadFeatures", false)) {
+            FeatureTableReloader.start(globalParams.get("rwsdmReloadInterval", 60L));
+        }
+        if (globalParams.get("rwsdmMetrics", false)) {
+            RWSDMMetrics.enable(globalParams.get("rwsdmMetricsInterval", 60L));
+        }
+        metrics = RWSDMMetrics.current();
+
+        if (globalParams.isString("rwsdmStatisticsStore")) {
+            initStatisticsStore(globalParams.getString("rwsdmStatisticsStore"), globalParams);
+        }
+        if (globalParams.isString("rwsdmStatisticsWarmup") && warmupStarted.compareAndSet(false, true)) {
+            startWarmup(retrieval, globalParams.getString("rwsdmStatisticsWarmup"));
+        }
+    }
+
+    /*
+     * The features, their tables and the vector cache of the retrieval
+     * ("rwsdmFeatures", "rwsdmBloomFilter", "rwsdmFeatureVectorCache").
+     */
+    private static FeatureEngine compileFeatures(Retrieval retrieval, Parameters globalParams) {
+        synchronized (engines) {
+            FeatureEngine compiled = engines.get(retrieval);
+            if (compiled != null) {
+                return compiled;
             }
+            int bloomBitsPerEntry = globalParams.get("rwsdmBloomFilter", false)
+                    ? (int) globalParams.get("rwsdmBloomBitsPerEntry", 10L) : 0;
 
-        } else {
-            // default list of features: (using target collection only)
-            uniFeatures.add(new RWSDMFeature("1-const", RWSDMFeatureType.CONST, 0.8, true));
-            uniFeatures.add(new RWSDMFeature("1-lntf", RWSDMFeatureType.LOGTF, 0.0, true));
-            uniFeatures.add(new RWSDMFeature("1-lndf", RWSDMFeatureType.LOGDF, 0.0, true));
+            List<RWSDMFeature> uniFeatures = new ArrayList();
+            List<RWSDMFeature> biFeatures = new ArrayList();
+            List<RWSDMFeature> triFeatures = new ArrayList();
+
+            if (globalParams.isList("rwsdmFeatures", Parameters.class)) {
+                for (Parameters f : (List<Parameters>) globalParams.getList("rwsdmFeatures")) {
+                    RWSDMFeature wf = new RWSDMFeature(f, bloomBitsPerEntry);
+                    if (wf.unigram) {
+                        uniFeatures.add(wf);
+                    }
+                    if (wf.bigram) {
+                        biFeatures.add(wf);
+                    }
+                    if (wf.trigram) {
+                        triFeatures.add(wf);
+                    }
+                }
 
-            biFeatures.add(new RWSDMFeature("2-const", RWSDMFeatureType.CONST, 0.1, false));
-            biFeatures.add(new RWSDMFeature("2-lntf", RWSDMFeatureType.LOGTF, 0.0, false));
-            biFeatures.add(new RWSDMFeature("2-lndf", RWSDMFeatureType.LOGDF, 0.0, false));
+            } else {
+                // default list of features: (using target collection only)
+                uniFeatures.add(new RWSDMFeature("1-const", RWSDMFeatureType.CONST, 0.8, true));
+                uniFeatures.add(new RWSDMFeature("1-lntf", RWSDMFeatureType.LOGTF, 0.0, true));
+                uniFeatures.add(new RWSDMFeature("1-lndf", RWSDMFeatureType.LOGDF, 0.0, true));
+
+                biFeatures.add(new RWSDMFeature("2-const", RWSDMFeatureType.CONST, 0.1, false));
+                biFeatures.add(new RWSDMFeature("2-lntf", RWSDMFeatureType.LOGTF, 0.0, false));
+                biFeatures.add(new RWSDMFeature("2-lndf", RWSDMFeatureType.LOGDF, 0.0, false));
+            }
+
+            compiled = new FeatureEngine(uniFeatures, biFeatures, triFeatures);
+            if (globalParams.get("rwsdmFeatureVectorCache", false)) {
+                compiled.enableVectorCache(globalParams.get("rwsdmFeatureVectorCacheSize", 1000000L));
+            }
+            engines.put(retrieval, compiled);
+            return compiled;
         }
     }
 
@@ -103,6 +261,7 @@ public class RealWSDMTraversal extends Traversal {
     @Override
     public Node afterNode(Node original, Parameters queryParams) throws Exception {
         if (original.getOperator().equals("rwsdm")) {
+            long start = metrics != null ? System.nanoTime() : 0;
 
             NodeParameters np = original.getNodeParameters();
 
@@ -114,6 +273,44 @@ public class RealWSDMTraversal extends Traversal {
                 }
             }
 
+            String[] terms = new String[children.size()];
+            for (int i = 0; i < terms.length; i++) {
+                terms[i] = children.get(i).getDefaultParameter();
+            }
+
+            FeatureEngine.Evaluator weights = evaluator(terms, np, queryParams);
+            boolean fused = fusedWindows && fusable(queryParams);
+            ClausePruner pruner = ClausePruner.create(globalParams, queryParams);
+
+            RewriteCache.Key rewriteKey = null;
+            RewriteCache rewrites = rewriteCache;
+            if (rewrites != null) {
+                if (globalParams.isString("index")) {
+                    rewrites.validate(globalParams.getString("index"));
+                }
+                String options = String.format("norm=%b fused=%b mu=%s pruning=%s", defCombNorm, fused,
+                        fused ? queryParams.get("mu", globalParams.get("mu", 1500.0)) : "", pruner);
+                rewriteKey = new RewriteCache.Key(engine, indexId, terms, weights.countsPart(), weights.extentsPart(),
+                        weights.lambdas(), options, original.getPosition());
+                Node cached = rewrites.get(rewriteKey);
+                if (cached != null) {
+                    if (verbose) {
+                        logger.info(rewrites.toString());
+                    }
+                    if (metrics != null) {
+                        metrics.rewrite(System.nanoTime() - start);
+                    }
+                    return cached;
+                }
+            }
+
+            // statistics of side groups that timed out during this rewrite
+            Set<StatisticsKey> unresolved = Collections.emptySet();
+            if (batchStatistics || groupFanOut) {
+                unresolved = prefetchStatistics(weights, terms);
+                weights.exclude(unresolved);
+            }
+
             // formatting is ok - now reassemble
             ArrayList<Node> newChildren = new ArrayList();
             NodeParameters newWeights = new NodeParameters();
@@ -121,44 +318,62 @@ public class RealWSDMTraversal extends Traversal {
             newWeights.set("norm", defCombNorm);
 
 
-            for (Node child : children) {
-                String term = child.getDefaultParameter();
-
-                double weight = computeWeight(term, np, queryParams);
+            for (int i = 0; i < terms.length; i++) {
+                double weight = weights.weight(1, i);
                 newWeights.set(Integer.toString(newChildren.size()), weight);
-                newChildren.add(child.clone());
+                newChildren.add(children.get(i).clone());
             }
 
-            if (!biFeatures.isEmpty()) {
-                for (int i = 0; i < (children.size() - 1); i++) {
-                    ArrayList<Node> pair = new ArrayList();
-                    pair.add(new Node("extents", children.get(i).getDefaultParameter()));
-                    pair.add(new Node("extents", children.get(i + 1).getDefaultParameter()));
-
-                    double weight = computeWeight(pair.get(0).getDefaultParameter(), pair.get(1).getDefaultParameter(), np, queryParams);
-
-                    newWeights.set(Integer.toString(newChildren.size()), weight);
-                    newChildren.add(new Node("od", new NodeParameters(1), Node.cloneNodeList(pair)));
-
-                    newWeights.set(Integer.toString(newChildren.size()), weight);
-                    newChildren.add(new Node("uw", new NodeParameters(8), Node.cloneNodeList(pair)));
+            // proximity clause weights by order, pruned before the nodes are built
+            double[][] clauseWeights = new double[FeatureEngine.MAX_ORDER + 1][];
+            for (int order = 2; order <= FeatureEngine.MAX_ORDER; order++) {
+                if (engine.hasFeatures(order) && terms.length >= order) {
+                    clauseWeights[order] = new double[terms.length - order + 1];
+                    for (int i = 0; i < clauseWeights[order].length; i++) {
+                        clauseWeights[order][i] = weights.weight(order, i);
+                    }
                 }
             }
+            boolean[][] keep = pruner == null ? null : pruner.keep(clauseWeights);
 
-            if (!triFeatures.isEmpty()) {
-                for (int i = 0; i < (children.size() - 2); i++) {
-                    ArrayList<Node> triple = new ArrayList();
-                    triple.add(new Node("extents", children.get(i).getDefaultParameter()));
-                    triple.add(new Node("extents", children.get(i + 1).getDefaultParameter()));
-                    triple.add(new Node("extents", children.get(i + 2).getDefaultParameter()));
+            for (int order = 2; order <= FeatureEngine.MAX_ORDER; order++) {
+                if (clauseWeights[order] == null) {
+                    continue;
+                }
+                int uwWidth = 4 * order;
+                int kept = 0;
+                for (int i = 0; i < clauseWeights[order].length; i++) {
+                    if (keep != null && !keep[order][i]) {
+                        continue;
+                    }
+                    kept++;
+                    ArrayList<Node> window = new ArrayList();
+                    for (int j = i; j < i + order; j++) {
+                        window.add(new Node("extents", terms[j]));
+                    }
+
+                    double weight = clauseWeights[order][i];
 
-                    double weight = computeWeight(triple.get(0).getDefaultParameter(), triple.get(1).getDefaultParameter(), triple.get(2).getDefaultParameter(), np, queryParams);
+                    if (fused) {
+                        newWeights.set(Integer.toString(newChildren.size()), 2 * weight);
+                        newChildren.add(fusedWindow(window, uwWidth, weights.extentsPart(), queryParams));
+                        continue;
+                    }
 
                     newWeights.set(Integer.toString(newChildren.size()), weight);
-                    newChildren.add(new Node("od", new NodeParameters(1), Node.cloneNodeList(triple)));
+                    newChildren.add(new Node("od", new NodeParameters(1), Node.cloneNodeList(window)));
 
                     newWeights.set(Integer.toString(newChildren.size()), weight);
-                    newChildren.add(new Node("uw", new NodeParameters(12), Node.cloneNodeList(triple)));
+                    newChildren.add(new Node("uw", new NodeParameters(uwWidth), Node.cloneNodeList(window)));
+                }
+                if (keep != null) {
+                    int dropped = clauseWeights[order].length - kept;
+                    if (verbose) {
+                        logger.info(String.format("pruning (%s) kept %d of %d %d-gram clauses", pruner, kept, kept + dropped, order));
+                    }
+                    if (metrics != null) {
+                        metrics.pruning(order, kept, dropped);
+                    }
                 }
             }
 
@@ -166,6 +381,17 @@ public class RealWSDMTraversal extends Traversal {
 
             if (verbose) {
                 System.err.println(wsdm.toPrettyString());
+                logger.info(statisticsCache.toString());
+                if (negativeStatistics != null) {
+                    logger.info(negativeStatistics.toString());
+                }
+            }
+            // a rewrite without the timed out groups is not kept
+            if (rewriteKey != null && unresolved.isEmpty()) {
+                rewrites.put(rewriteKey, wsdm);
+            }
+            if (metrics != null) {
+                metrics.rewrite(System.nanoTime() - start);
             }
 
             return wsdm;
@@ -174,446 +400,365 @@ public class RealWSDMTraversal extends Traversal {
         }
     }
 
-    private double computeWeight(String term, NodeParameters np, Parameters queryParams) throws Exception {
-
-        // we will probably need this for several features :
-        Node t = new Node("counts", term);
-        t = TextPartAssigner.assignPart(t, queryParams, retrieval.getAvailableParts());
-
-        // feature value store
-        Map<RWSDMFeature, Double> featureValues = new HashMap();
-
-        // tf/df comes from the same object - can be used  twice
-        Map<String, AggregateStatistic> localCache = new HashMap();
-
-        // NOW : collect some feature values
-        Node node;
-        NodeStatistics featureStats;
-        String cacheString;
-
-        for (RWSDMFeature f : uniFeatures) {
-            switch (f.type) {
-                case CONST:
-                    assert (!featureValues.containsKey(f));
-                    featureValues.put(f, 1.0);
-                    break;
-
-                case LOGTF:
-                case LOGNGRAMTF: // unigrams are the same
-                    assert (!featureValues.containsKey(f));
-
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
-
-                    node = t;
-                    if (!f.part.isEmpty()) {
-                        node = t.clone();
-                        node.getNodeParameters().set("part", f.part);
-                    }
-                    cacheString = node.toString() + "-" + f.group;
-
-                    if (localCache.containsKey(cacheString)) {
-                        featureStats = (NodeStatistics) localCache.get(cacheString);
-                    } else if (gRetrieval != null && !f.group.isEmpty()) {
-                        featureStats = gRetrieval.getNodeStatistics(node, f.group);
-                        localCache.put(cacheString, featureStats);
-                    } else {
-                        featureStats = this.retrieval.getNodeStatistics(node);
-                        localCache.put(cacheString, featureStats);
-                    }
-
-                    // only add the value if it occurs in the collection (log (0) = -Inf)
-                    if (featureStats.nodeFrequency != 0) {
-                        featureValues.put(f, Math.log(featureStats.nodeFrequency));
-                    }
-
-                    break;
-
-                case LOGDF:
-                    assert (!featureValues.containsKey(f));
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
-
-                    node = t;
-                    if (!f.part.isEmpty()) {
-                        node = t.clone();
-                        node.getNodeParameters().set("part", f.part);
-                    }
-                    cacheString = node.toString() + "-" + f.group;
-
-                    if (localCache.containsKey(cacheString)) {
-                        featureStats = (NodeStatistics) localCache.get(cacheString);
-                    } else if (gRetrieval != null && !f.group.isEmpty()) {
-                        featureStats = gRetrieval.getNodeStatistics(node, f.group);
-                        localCache.put(cacheString, featureStats);
-                    } else {
-                        featureStats = this.retrieval.getNodeStatistics(node);
-                        localCache.put(cacheString, featureStats);
-                    }
+    /*
+     * The fused operator reproduces the dirichlet scores of the separate
+     * windows : other scorers keep them.
+     */
+    private boolean fusable(Parameters queryParams) {
+        return queryParams.get("scorer", globalParams.get("scorer", "dirichlet")).equals("dirichlet");
+    }
 
-                    // only add the value if it occurs in the collection (log (0) = -Inf)
-                    if (featureStats.nodeDocumentCount != 0) {
-                        featureValues.put(f, Math.log(featureStats.nodeDocumentCount));
-                    }
+    /*
+     * #od:1 and #uw:uwWidth of the same extents as one FusedWindowIterator,
+     * weighted 2 * w in the combine : each window keeps its weight w.
+     */
+    private Node fusedWindow(List<Node> extents, int uwWidth, String part, Parameters queryParams) throws Exception {
+        String[] window = new String[extents.size()];
+        for (int i = 0; i < window.length; i++) {
+            window[i] = extents.get(i).getDefaultParameter();
+        }
+        NodeStatistics od = getNodeStatistics(new StatisticsKey(indexId, "od:1", part, "", window));
+        NodeStatistics uw = getNodeStatistics(new StatisticsKey(indexId, "uw:" + uwWidth, part, "", window));
+
+        NodeParameters np = new NodeParameters();
+        np.set("odWidth", 1L);
+        np.set("uwWidth", (long) uwWidth);
+        np.set("mu", queryParams.get("mu", globalParams.get("mu", 1500.0)));
+        FieldStatistics lengths = lengthStatistics();
+        np.set("collectionLength", lengths.collectionLength);
+        np.set("maxLength", lengths.maxLength);
+        np.set("odFrequency", od.nodeFrequency);
+        np.set("uwFrequency", uw.nodeFrequency);
+
+        NodeParameters lengthsParameters = new NodeParameters("document");
+        lengthsParameters.set("part", "lengths");
+        ArrayList<Node> children = new ArrayList<>();
+        children.add(new Node("lengths", lengthsParameters));
+        children.addAll(Node.cloneNodeList(extents));
+        return new Node(FusedWindowIterator.OPERATOR, np, children);
+    }
 
-                    break;
+    private FieldStatistics lengthStatistics() throws Exception {
+        FieldStatistics lengths = lengthStatistics.get(indexId);
+        if (lengths == null) {
+            lengths = retrieval.getCollectionStatistics("#lengths:document:part=lengths()");
+            lengthStatistics.put(indexId, lengths);
+        }
+        return lengths;
+    }
 
-                case EXTERNAL:
-                    assert (!featureValues.containsKey(f));
+    /*
+     * The part assigned to the query terms depends on the query (stemming,
+     * available parts), not on the term : it is resolved once per rwsdm node.
+     */
+    private FeatureEngine.Evaluator evaluator(String[] terms, NodeParameters np, Parameters queryParams) throws Exception {
+        String countsPart = "";
+        String extentsPart = "";
+        if (terms.length > 0) {
+            Parameters parts = retrieval.getAvailableParts();
+            countsPart = TextPartAssigner.assignPart(new Node("counts", terms[0]), queryParams, parts).getNodeParameters().get("part", "");
+            extentsPart = TextPartAssigner.assignPart(new Node("extents", terms[0]), queryParams, parts).getNodeParameters().get("part", "");
+        }
+        return engine.evaluator(indexId, terms, np, queryParams, this::getNodeStatistics, countsPart, extentsPart, verbose);
+    }
 
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
+    static Stemmer stemmer() {
+        return stemmer.get();
+    }
 
-                    if (f.containsNGram(term)) {
-                        featureValues.put(f, Math.log(f.getNGramValue(term)));
+    private static void initStatisticsCache(long capacity, long negativeCapacity) {
+        if (statisticsCache == null) {
+            synchronized (RealWSDMTraversal.class) {
+                if (statisticsCache == null) {
+                    if (negativeCapacity > 0) {
+                        negativeStatistics = new NegativeStatisticsCache((int) Math.min(negativeCapacity, 1 << 28));
                     }
-
-                    break;
+                    statisticsCache = new NodeStatisticsCache(capacity);
+                }
             }
         }
+    }
 
-        double weight = 0.0;
-        for (RWSDMFeature f : uniFeatures) {
-            double lambda = np.get(f.name, queryParams.get(f.name, f.defLambda));
-            if (featureValues.containsKey(f)) {
-                weight += lambda * featureValues.get(f);
-                if (verbose) {
-                    logger.info(String.format("%s -- feature:%s:%g * %g = %g", term, f.name, lambda, featureValues.get(f), lambda * featureValues.get(f)));
-                }
+    /*
+     * The sidecar is read once, and only used if it was built from the
+     * (single) index of the retrieval as it is now.
+     */
+    private static synchronized void initPhraseStatistics(String path, Parameters globalParams) {
+        if (path.equals(phraseStatisticsPath)) {
+            return;
+        }
+        phraseStatisticsPath = path;
+        phraseStatistics = null;
+        if (!globalParams.isString("index")) {
+            logger.warning(String.format("Ignoring %s : phrase statistics need a single index", path));
+            return;
+        }
+        try {
+            PhraseStatisticsSidecar sidecar = PhraseStatisticsSidecar.open(path);
+            if (sidecar.matches(globalParams.getString("index"))) {
+                phraseStatistics = sidecar;
+            } else {
+                logger.warning(String.format("Ignoring %s : built from another version of %s", sidecar, globalParams.getString("index")));
             }
+        } catch (IOException x) {
+            System.err.format("IOException: %s%n", x);
         }
-
-        return weight;
     }
 
-    private double computeWeight(String term1, String term2, NodeParameters np, Parameters queryParams) throws Exception {
-
-        // prepare nodes (will be used several times)
-        Node t1 = new Node("extents", term1);
-        t1 = TextPartAssigner.assignPart(t1, queryParams, retrieval.getAvailableParts());
-        Node t2 = new Node("extents", term2);
-        t2 = TextPartAssigner.assignPart(t2, queryParams, retrieval.getAvailableParts());
-
-        Node od1 = new Node("ordered");
-        od1.getNodeParameters().set("default", 1);
-        od1.addChild(t1);
-        od1.addChild(t2);
-
-        // feature value store
-        Map<RWSDMFeature, Double> featureValues = new HashMap();
-
-        // tf/df comes from the same object - can be used  twice
-        Map<String, AggregateStatistic> localCache = new HashMap();
-
-        // NOW : collect some feature values
-        Node node;
-        NodeStatistics featureStats;
-        String cacheString;
-
-        for (RWSDMFeature f : biFeatures) {
-            switch (f.type) {
-                case CONST:
-                    assert (!featureValues.containsKey(f));
-                    featureValues.put(f, 1.0);
-                    break;
-
-                case LOGTF:
-                    assert (!featureValues.containsKey(f));
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
-
-                    node = od1;
-                    if (!f.part.isEmpty()) {
-                        node = od1.clone();
-                        node.getChild(0).getNodeParameters().set("part", f.part);
-                        node.getChild(1).getNodeParameters().set("part", f.part);
-                    }
-                    // f.group is "" or some particular group
-                    cacheString = node.toString() + "-" + f.group;
-
-                    // first check if we have already done this node.
-                    if (localCache.containsKey(cacheString)) {
-                        featureStats = (NodeStatistics) localCache.get(cacheString);
-                    } else if (gRetrieval != null && !f.group.isEmpty()) {
-                        featureStats = gRetrieval.getNodeStatistics(node, f.group);
-                        localCache.put(cacheString, featureStats);
-                    } else {
-                        featureStats = this.retrieval.getNodeStatistics(node);
-                        localCache.put(cacheString, featureStats);
-                    }
-
-                    // only add the value if it occurs in the collection (log (0) = -Inf)
-                    if (featureStats.nodeFrequency != 0) {
-                        featureValues.put(f, Math.log(featureStats.nodeFrequency));
-                    }
-
-                    break;
-
-                case LOGDF:
-                    assert (!featureValues.containsKey(f));
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
-
-                    node = od1;
-                    if (!f.part.isEmpty()) {
-                        node = od1.clone();
-                        node.getChild(0).getNodeParameters().set("part", f.part);
-                        node.getChild(1).getNodeParameters().set("part", f.part);
-                    }
-                    cacheString = node.toString() + "-" + f.group;
-
-                    if (localCache.containsKey(cacheString)) {
-                        featureStats = (NodeStatistics) localCache.get(cacheString);
-                    } else if (gRetrieval != null && !f.group.isEmpty()) {
-                        featureStats = gRetrieval.getNodeStatistics(node, f.group);
-                        localCache.put(cacheString, featureStats);
-                    } else {
-                        featureStats = this.retrieval.getNodeStatistics(node);
-                        localCache.put(cacheString, featureStats);
-                    }
-
-                    // only add the value if it occurs in the collection (log (0) = -Inf)
-                    if (featureStats.nodeDocumentCount != 0) {
-                        featureValues.put(f, Math.log(featureStats.nodeDocumentCount));
-                    }
-
-                    break;
-
-                case LOGNGRAMTF:
-                    assert (!featureValues.containsKey(f));
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
-
-                    node = new Node("counts", term1 + "~" + term2);
-                    if (!f.part.isEmpty()) {
-                        node.getNodeParameters().set("part", f.part);
-                    }
-                    // f.group is "" or some particular group
-                    cacheString = node.toString() + "-" + f.group;
-
-                    // first check if we have already done this node.
-                    if (localCache.containsKey(cacheString)) {
-                        featureStats = (NodeStatistics) localCache.get(cacheString);
-                    } else if (gRetrieval != null && !f.group.isEmpty()) {
-                        featureStats = gRetrieval.getNodeStatistics(node, f.group);
-                        localCache.put(cacheString, featureStats);
-                    } else {
-                        featureStats = this.retrieval.getNodeStatistics(node);
-                        localCache.put(cacheString, featureStats);
-                    }
-
-                    // only add the value if it occurs in the collection (log (0) = -Inf)
-                    if (featureStats.nodeFrequency != 0) {
-                        featureValues.put(f, Math.log(featureStats.nodeFrequency));
-                    }
-
-                    break;
-
-                case EXTERNAL:
-                    assert (!featureValues.containsKey(f));
-
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
-
-                    if (f.containsNGram(term1, term2)) {
-                        featureValues.put(f, Math.log(f.getNGramValue(term1, term2)));
-                    }
-
-                    break;
-
-            }
+    private static synchronized void initStatisticsStore(String path, Parameters globalParams) {
+        if (path.equals(statisticsStorePath)) {
+            return;
         }
+        statisticsStorePath = path;
+        if (statisticsStore != null) {
+            statisticsStore.flush();
+            statisticsStore = null;
+        }
+        try {
+            long signature = StatisticsStore.indexSignature(globalParams);
+            String index = globalParams.isString("index") ? globalParams.getString("index") : globalParams.getList("index").toString();
+            StatisticsStore store = StatisticsStore.open(path, index, signature,
+                    (int) globalParams.get("rwsdmStatisticsStoreSize", 1000000L));
+            store.startFlushing(globalParams.get("rwsdmStatisticsStoreInterval", 300L));
+            statisticsStore = store;
+        } catch (IOException x) {
+            logger.warning(String.format("Ignoring %s : %s", path, x.getMessage()));
+        }
+    }
 
-        double weight = 0.0;
-        for (RWSDMFeature f : biFeatures) {
-            double lambda = np.get(f.name, queryParams.get(f.name, f.defLambda));
-            if (featureValues.containsKey(f)) {
-                weight += lambda * featureValues.get(f);
-                if (verbose) {
-                    logger.info(String.format("%s, %s -- feature:%s:%g * %g = %g", term1, term2, f.name, lambda, featureValues.get(f), lambda * featureValues.get(f)));
+    /*
+     * Rewrites the queries of the log with a traversal of its own, the
+     * statistics they need end up in the caches and the store.
+     */
+    private static void startWarmup(Retrieval retrieval, String queryLog) {
+        Thread warmup = new Thread(() -> {
+            long start = System.nanoTime();
+            int queries = 0;
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(queryLog), StandardCharsets.UTF_8)) {
+                RealWSDMTraversal traversal = new RealWSDMTraversal(retrieval);
+                TagTokenizer tokenizer = new TagTokenizer();
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    Document document = new Document();
+                    document.text = line;
+                    tokenizer.process(document);
+                    if (document.terms.isEmpty()) {
+                        continue;
+                    }
+                    List<Node> children = new ArrayList<>();
+                    for (String term : document.terms) {
+                        children.add(new Node("text", term));
+                    }
+                    traversal.afterNode(new Node("rwsdm", children), Parameters.create());
+                    queries++;
                 }
+                logger.info(String.format("Warmed up the statistics of %d queries of %s in %.1fs",
+                        queries, queryLog, (System.nanoTime() - start) / 1e9));
+            } catch (IOException x) {
+                System.err.format("IOException: %s%n", x);
+            } catch (Exception x) {
+                logger.warning(String.format("Warm-up stopped after %d queries of %s : %s", queries, queryLog, x));
             }
-        }
-
-        return weight;
+        }, "rwsdm-warmup");
+        warmup.setDaemon(true);
+        warmup.start();
     }
 
-    private double computeWeight(String term1, String term2, String term3, NodeParameters np, Parameters queryParams) throws Exception {
-
-        // prepare nodes (will be used several times)
-        Node t1 = new Node("extents", term1);
-        t1 = TextPartAssigner.assignPart(t1, queryParams, retrieval.getAvailableParts());
-        Node t2 = new Node("extents", term2);
-        t2 = TextPartAssigner.assignPart(t2, queryParams, retrieval.getAvailableParts());
-        Node t3 = new Node("extents", term3);
-        t3 = TextPartAssigner.assignPart(t3, queryParams, retrieval.getAvailableParts());
-
-        Node od1 = new Node("ordered");
-        od1.getNodeParameters().set("default", 1);
-        od1.addChild(t1);
-        od1.addChild(t2);
-        od1.addChild(t3);
-
-        // feature value store
-        Map<RWSDMFeature, Double> featureValues = new HashMap();
-
-        // tf/df comes from the same object - can be used twice
-        Map<String, AggregateStatistic> localCache = new HashMap();
-
-        // NOW : collect some feature values
-        Node node;
-        NodeStatistics featureStats;
-        String cacheString;
-
-        for (RWSDMFeature f : triFeatures) {
-            switch (f.type) {
-                case CONST:
-                    assert (!featureValues.containsKey(f));
-                    featureValues.put(f, 1.0);
-                    break;
-
-                case LOGTF:
-                    assert (!featureValues.containsKey(f));
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
-
-                    node = od1;
-                    if (!f.part.isEmpty()) {
-                        node = od1.clone();
-                        node.getChild(0).getNodeParameters().set("part", f.part);
-                        node.getChild(1).getNodeParameters().set("part", f.part);
-                        node.getChild(2).getNodeParameters().set("part", f.part);
-                    }
-                    // f.group is "" or some particular group
-                    cacheString = node.toString() + "-" + f.group;
-
-                    // first check if we have already done this node.
-                    if (localCache.containsKey(cacheString)) {
-                        featureStats = (NodeStatistics) localCache.get(cacheString);
-                    } else if (gRetrieval != null && !f.group.isEmpty()) {
-                        featureStats = gRetrieval.getNodeStatistics(node, f.group);
-                        localCache.put(cacheString, featureStats);
-                    } else {
-                        featureStats = this.retrieval.getNodeStatistics(node);
-                        localCache.put(cacheString, featureStats);
-                    }
-
-                    // only add the value if it occurs in the collection (log (0) = -Inf)
-                    if (featureStats.nodeFrequency != 0) {
-                        featureValues.put(f, Math.log(featureStats.nodeFrequency));
-                    }
-
-                    break;
-
-                case LOGDF:
-                    assert (!featureValues.containsKey(f));
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
-
-                    node = od1;
-                    if (!f.part.isEmpty()) {
-                        node = od1.clone();
-                        node.getChild(0).getNodeParameters().set("part", f.part);
-                        node.getChild(1).getNodeParameters().set("part", f.part);
-                        node.getChild(2).getNodeParameters().set("part", f.part);
-                    }
-                    cacheString = node.toString() + "-" + f.group;
-
-                    if (localCache.containsKey(cacheString)) {
-                        featureStats = (NodeStatistics) localCache.get(cacheString);
-                    } else if (gRetrieval != null && !f.group.isEmpty()) {
-                        featureStats = gRetrieval.getNodeStatistics(node, f.group);
-                        localCache.put(cacheString, featureStats);
-                    } else {
-                        featureStats = this.retrieval.getNodeStatistics(node);
-                        localCache.put(cacheString, featureStats);
-                    }
+    /**
+     * @return the statistics store shared by all traversals, null unless
+     * "rwsdmStatisticsStore" is set
+     */
+    public static StatisticsStore getStatisticsStore() {
+        return statisticsStore;
+    }
 
-                    // only add the value if it occurs in the collection (log (0) = -Inf)
-                    if (featureStats.nodeDocumentCount != 0) {
-                        featureValues.put(f, Math.log(featureStats.nodeDocumentCount));
-                    }
+    private static void initRewriteCache(long capacity) {
+        if (rewriteCache == null) {
+            synchronized (RealWSDMTraversal.class) {
+                if (rewriteCache == null) {
+                    rewriteCache = new RewriteCache(capacity);
+                }
+            }
+        }
+    }
 
-                    break;
+    /**
+     * @return the rewrite cache shared by all traversals, null unless
+     * "rwsdmRewriteCache" is on
+     */
+    public static RewriteCache getRewriteCache() {
+        return rewriteCache;
+    }
 
-                case LOGNGRAMTF:
-                    assert (!featureValues.containsKey(f));
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
+    /**
+     * @return the statistics cache shared by all traversals (null until the
+     * first traversal is created)
+     */
+    public static NodeStatisticsCache getStatisticsCache() {
+        return statisticsCache;
+    }
 
-                    node = new Node("counts", term1 + "~" + term2 + "~" + term3);
-                    if (!f.part.isEmpty()) {
-                        node.getNodeParameters().set("part", f.part);
-                    }
-                    // f.group is "" or some particular group
-                    cacheString = node.toString() + "-" + f.group;
-
-                    // first check if we have already done this node.
-                    if (localCache.containsKey(cacheString)) {
-                        featureStats = (NodeStatistics) localCache.get(cacheString);
-                    } else if (gRetrieval != null && !f.group.isEmpty()) {
-                        featureStats = gRetrieval.getNodeStatistics(node, f.group);
-                        localCache.put(cacheString, featureStats);
-                    } else {
-                        featureStats = this.retrieval.getNodeStatistics(node);
-                        localCache.put(cacheString, featureStats);
-                    }
+    private static void initStatisticsExecutor(int threads) {
+        if (statisticsExecutor == null) {
+            synchronized (RealWSDMTraversal.class) {
+                if (statisticsExecutor == null) {
+                    statisticsExecutor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+                        Thread thread = new Thread(r, "rwsdm-statistics");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+    }
 
-                    // only add the value if it occurs in the collection (log (0) = -Inf)
-                    if (featureStats.nodeFrequency != 0) {
-                        featureValues.put(f, Math.log(featureStats.nodeFrequency));
-                    }
+    private NodeStatistics getNodeStatistics(StatisticsKey key) throws Exception {
+        NodeStatistics known = knownStatistics(key);
+        if (known != null) {
+            return known;
+        }
+        return statisticsCache.get(key, () -> loadNodeStatistics(key));
+    }
 
-                    break;
+    /*
+     * Statistics answered without the index : known zero nodes and phrases
+     * of the sidecar.
+     */
+    private static NodeStatistics knownStatistics(StatisticsKey key) {
+        NegativeStatisticsCache negative = negativeStatistics;
+        NodeStatistics stats = negative == null ? null : negative.get(key);
+        if (stats == null) {
+            PhraseStatisticsSidecar sidecar = phraseStatistics;
+            stats = sidecar == null ? null : sidecar.get(key);
+        }
+        if (stats == null) {
+            StatisticsStore store = statisticsStore;
+            stats = store == null ? null : store.get(key);
+        }
+        return stats;
+    }
 
-                case EXTERNAL:
-                    assert (!featureValues.containsKey(f));
+    private NodeStatistics loadNodeStatistics(StatisticsKey key) throws Exception {
+        long start = metrics != null ? System.nanoTime() : 0;
+        Node node = key.toNode();
+        NodeStatistics stats;
+        if (gRetrieval != null && !key.group.isEmpty()) {
+            stats = gRetrieval.getNodeStatistics(node, key.group);
+        } else {
+            stats = this.retrieval.getNodeStatistics(node);
+        }
+        if (metrics != null) {
+            metrics.statisticsLoad(System.nanoTime() - start);
+        }
+        if (negativeStatistics != null) {
+            negativeStatistics.record(key, stats);
+        }
+        if (statisticsStore != null) {
+            statisticsStore.record(key, stats);
+        }
+        return stats;
+    }
 
-                    // if the feature weight is 0 -- don't compute the feature
-                    if (queryParams.get(f.name, f.defLambda) == 0.0) {
-                        break;
-                    }
+    /*
+     * Collects the statistics keys of every clause, removes duplicates and
+     * fetches the ones that are not cached yet in parallel (default group
+     * with "rwsdmBatchStatistics", side groups with "rwsdmGroupFanOut"). The
+     * weights are then computed from the cache.
+     *
+     * Every group is a queue drained by a bounded number of tasks, so a slow
+     * side collection holds at most groupParallelism threads, and all groups
+     * are waited for with the same deadline.
+     *
+     * @return keys of the side groups that timed out
+     */
+    private Set<StatisticsKey> prefetchStatistics(FeatureEngine.Evaluator weights, String[] terms) throws Exception {
+        Set<StatisticsKey> keys = new LinkedHashSet<>();
+        for (int order = 1; order <= FeatureEngine.MAX_ORDER; order++) {
+            for (int i = 0; i <= (terms.length - order); i++) {
+                weights.collectKeys(order, i, keys);
+            }
+        }
 
-                    if (f.containsNGram(term1, term2, term3)) {
-                        featureValues.put(f, Math.log(f.getNGramValue(term1, term2, term3)));
-                    }
+        Map<String, ConcurrentLinkedQueue<StatisticsKey>> groups = new LinkedHashMap<>();
+        int missing = 0;
+        for (StatisticsKey key : keys) {
+            boolean side = gRetrieval != null && !key.group.isEmpty();
+            if ((side ? groupFanOut : batchStatistics)
+                    && !statisticsCache.containsKey(key) && knownStatistics(key) == null) {
+                groups.computeIfAbsent(key.group, g -> new ConcurrentLinkedQueue<>()).add(key);
+                missing++;
+            }
+        }
 
-                    break;
+        Map<String, List<Future<?>>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, ConcurrentLinkedQueue<StatisticsKey>> group : groups.entrySet()) {
+            ConcurrentLinkedQueue<StatisticsKey> queue = group.getValue();
+            int lanes = group.getKey().isEmpty() ? queue.size() : Math.min(groupParallelism, queue.size());
+            List<Future<?>> tasks = new ArrayList<>(lanes);
+            for (int l = 0; l < lanes; l++) {
+                tasks.add(statisticsExecutor.submit(() -> {
+                    for (StatisticsKey key = queue.poll(); key != null; key = queue.poll()) {
+                        statisticsCache.put(key, loadNodeStatistics(key));
+                    }
+                    return null;
+                }));
             }
+            futures.put(group.getKey(), tasks);
         }
 
-        double weight = 0.0;
-        for (RWSDMFeature f : triFeatures) {
-            double lambda = np.get(f.name, queryParams.get(f.name, f.defLambda));
-            if (featureValues.containsKey(f)) {
-                weight += lambda * featureValues.get(f);
-                if (verbose) {
-                    logger.info(String.format("%s, %s, %s -- feature:%s:%g * %g = %g", term1, term2, term3, f.name, lambda, featureValues.get(f), lambda * featureValues.get(f)));
+        Set<StatisticsKey> timedOut = Collections.emptySet();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupTimeout);
+        try {
+            for (Map.Entry<String, List<Future<?>>> group : futures.entrySet()) {
+                boolean wait = groupTimeout <= 0 || group.getKey().isEmpty();
+                try {
+                    for (Future<?> future : group.getValue()) {
+                        if (wait) {
+                            future.get();
+                        } else {
+                            future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                        }
+                    }
+                } catch (TimeoutException x) {
+                    // running lookups finish into the cache, queued ones are dropped
+                    groups.get(group.getKey()).clear();
+                    if (timedOut.isEmpty()) {
+                        timedOut = new HashSet<>();
+                    }
+                    int late = 0;
+                    for (StatisticsKey key : keys) {
+                        if (key.group.equals(group.getKey()) && !statisticsCache.containsKey(key) && knownStatistics(key) == null) {
+                            timedOut.add(key);
+                            late++;
+                        }
+                    }
+                    logger.warning(String.format("group %s did not answer %d statistics nodes within %d ms",
+                            group.getKey(), late, groupTimeout));
+                    if (metrics != null) {
+                        metrics.groupTimeout(group.getKey(), late);
+                    }
+                }
+            }
+        } catch (ExecutionException x) {
+            // no interrupts : an interrupted read closes the index channel for
+            // every later query, running lookups finish and queued keys are dropped
+            for (ConcurrentLinkedQueue<StatisticsKey> queue : groups.values()) {
+                queue.clear();
+            }
+            for (List<Future<?>> tasks : futures.values()) {
+                for (Future<?> future : tasks) {
+                    future.cancel(false);
                 }
             }
+            if (x.getCause() instanceof Exception) {
+                throw (Exception) x.getCause();
+            }
+            throw x;
         }
 
-        return weight;
+        if (verbose) {
+            logger.info(String.format("prefetched %d of %d statistics nodes (%d groups)", missing, keys.size(), groups.size()));
+        }
+        return timedOut;
     }
 
     public static enum RWSDMFeatureType {
@@ -641,11 +786,20 @@ public class RealWSDMTraversal extends Traversal {
         public boolean unigram;
         public boolean bigram;
         public boolean trigram;
-        public Map<List<String>, Integer> featureValues;
+        public NGramTable featureValues;
 
-        private static Map<String, Map<List<String>, Integer>> valuesCache = new HashMap<>();
+        // single-flight : concurrent traversals wait for the same load of a path
+        private static final ConcurrentHashMap<String, FutureTask<NGramTable>> valuesCache = new ConcurrentHashMap<>();
 
         public RWSDMFeature(Parameters p) {
+            this(p, 0);
+        }
+
+        /*
+         * bloomBitsPerEntry : bits per n-gram of the Bloom filter in front of
+         * the external table, 0 = no filter
+         */
+        public RWSDMFeature(Parameters p, int bloomBitsPerEntry) {
             this.name = p.getString("name");
             this.type = RWSDMFeatureType.valueOf(p.get("type", "logtf").toUpperCase());
             this.defLambda = p.get("lambda", 1.0);
@@ -655,13 +809,7 @@ public class RealWSDMTraversal extends Traversal {
             this.bigram = p.get("bigram", !unigram);
             this.trigram = p.get("trigram", !unigram && !bigram);
             if (this.type.equals(RWSDMFeatureType.EXTERNAL)) {
-                String path = p.getString("path");
-                if (valuesCache.containsKey(path)) {
-                    this.featureValues = valuesCache.get(path);
-                } else {
-                    this.featureValues = readFeatureValues(p.getString("path"));
-                    valuesCache.put(path, this.featureValues);
-                }
+                this.featureValues = featureTable(p.getString("path"), bloomBitsPerEntry);
             }
         }
 
@@ -679,33 +827,80 @@ public class RealWSDMTraversal extends Traversal {
             this.trigram = !unigram;
         }
 
-        private List<String> stemNGram(List<String> grams) {
-            return grams.stream().map(stemmer::stem).collect(Collectors.toList());
+        private static NGramTable featureTable(String path, int bloomBitsPerEntry) {
+            // a filtered and an unfiltered table of the same file are loaded apart
+            String key = bloomBitsPerEntry > 0 ? path + "#bloom" + bloomBitsPerEntry : path;
+            FutureTask<NGramTable> task = valuesCache.get(key);
+            if (task == null) {
+                FutureTask<NGramTable> load = new FutureTask<>(() -> readFeatureValues(path, bloomBitsPerEntry));
+                task = valuesCache.putIfAbsent(key, load);
+                if (task == null) {
+                    task = load;
+                    load.run();
+                }
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(String.format("interrupted while loading %s", path), x);
+            } catch (ExecutionException x) {
+                // let the next traversal try again
+                valuesCache.remove(key, task);
+                throw new IllegalStateException(String.format("failed to load %s", path), x.getCause());
+            }
         }
 
         public boolean containsNGram(String... grams) {
-            return featureValues.containsKey(stemNGram(Arrays.asList(grams)));
+            return value(grams) != NGramTable.MISSING;
         }
 
         public Integer getNGramValue(String... grams) {
-            return featureValues.get(stemNGram(Arrays.asList(grams)));
-        }
-
-        private Map<List<String>, Integer> readFeatureValues(String path) {
-            Map<List<String>, Integer> values = new HashMap<>();
-            logger.info(String.format("Start reading values from %s", path));
-            try (BufferedReader reader = Files.newBufferedReader(Paths.get(path))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split("\\t");
-                    String[] grams = parts[0].split(" ");
-                    values.put(Arrays.asList(grams), Integer.parseInt(parts[1]));
-                }
+            int value = value(grams);
+            return value == NGramTable.MISSING ? null : value;
+        }
+
+        private int value(String... grams) {
+            NGramTable table = featureValues.current();
+            Stemmer s = stemmer.get();
+            int[] ids = new int[grams.length];
+            for (int i = 0; i < grams.length; i++) {
+                ids[i] = table.termId(s.stem(grams[i]));
+            }
+            return table.get(ids, 0, grams.length);
+        }
+
+        private static NGramTable readFeatureValues(String path, int bloomBitsPerEntry) {
+            return FeatureTableReloader.watch(path, p -> loadFeatureValues(p, bloomBitsPerEntry));
+        }
+
+        /*
+         * Binary lexicons (see MappedNGramTable) are memory-mapped, sketches
+         * (see SketchNGramTable) are approximate, anything else is read as a
+         * TSV file onto the heap. Exact tables get a Bloom filter of
+         * bloomBitsPerEntry bits per n-gram in front of them (0 = none).
+         */
+        static NGramTable loadFeatureValues(String path, int bloomBitsPerEntry) throws IOException {
+            if (SketchNGramTable.isSketch(path)) {
+                return SketchNGramTable.open(path);
+            }
+            NGramTable table = MappedNGramTable.isLexicon(path) ? MappedNGramTable.open(path) : loadHashTable(path);
+            return bloomBitsPerEntry > 0 ? BloomNGramTable.wrap(table, path, bloomBitsPerEntry) : table;
+        }
+
+        private static HashNGramTable loadHashTable(String path) throws IOException {
+            HashNGramTable table = NGramTableSnapshot.load(path);
+            if (table != null) {
+                return table;
+            }
+            table = NGramTableLoader.load(path);
+            try {
+                NGramTableSnapshot.write(table, path);
             } catch (IOException x) {
-                System.err.format("IOException: %s%n", x);
+                // e.g. read-only feature directory : keep parsing the TSV next time
+                logger.warning(String.format("Could not write snapshot of %s : %s", path, x));
             }
-            logger.info(String.format("Finished reading values from %s", path));
-            return values;
+            return table;
         }
     }
 }
@@ -0,0 +1,66 @@
+package real_wsdm;
+
+/**
+ * Feature table whose content can be replaced while queries are running (see
+ * {@link FeatureTableReloader}).
+ * <p>
+ * A lookup needs a term id and a value from the same table, so callers that
+ * do more than one call take {@link #current()} once and use that table for
+ * the whole rwsdm node : a query in flight keeps the table it started with,
+ * and the old table is released once the last such query is done.
+ *
+ * @author fsqcds
+ */
+public class ReloadableNGramTable implements NGramTable {
+    private final String path;
+    private volatile NGramTable current;
+    // size and modification time of the file the current table was loaded from
+    private volatile long loadedSize;
+    private volatile long loadedModified;
+
+    ReloadableNGramTable(String path, NGramTable table, long size, long modified) {
+        this.path = path;
+        this.current = table;
+        this.loadedSize = size;
+        this.loadedModified = modified;
+    }
+
+    public String path() {
+        return path;
+    }
+
+    @Override
+    public NGramTable current() {
+        return current;
+    }
+
+    @Override
+    public int termId(String stemmedTerm) {
+        return current.termId(stemmedTerm);
+    }
+
+    @Override
+    public int get(int[] ids, int offset, int order) {
+        return current.get(ids, offset, order);
+    }
+
+    @Override
+    public long size() {
+        return current.size();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    boolean isLoaded(long size, long modified) {
+        return loadedSize == size && loadedModified == modified;
+    }
+
+    void swap(NGramTable table, long size, long modified) {
+        loadedSize = size;
+        loadedModified = modified;
+        current = table;
+    }
+}
@@ -0,0 +1,176 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.retrieval.query.Node;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of rewritten rwsdm nodes shared by all traversals : the
+ * head of the query traffic repeats, and every repeat would otherwise load
+ * the same statistics and external values to build the same combine node.
+ * <p>
+ * Keys hold everything the rewrite depends on (see {@link Key}). Hits are
+ * cloned, the cached node is never handed out. The cache is cleared when
+ * feature files are reloaded (see {@link FeatureTableReloader}) and when the
+ * files of the index change (checked at most once a second).
+ *
+ * @author fsqcds
+ */
+public class RewriteCache {
+    private static final long INDEX_CHECK_NANOS = 1000000000L;
+
+    private final LinkedHashMap<Key, Node> nodes;
+    private final long capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final Map<String, long[]> indexSignatures = new ConcurrentHashMap<>();
+
+    public RewriteCache(long capacity) {
+        this.capacity = capacity;
+        this.nodes = new LinkedHashMap<Key, Node>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Node> eldest) {
+                return size() > RewriteCache.this.capacity;
+            }
+        };
+        FeatureTableReloader.addListener(this::clear);
+    }
+
+    /**
+     * @return a copy of the cached rewrite, or null
+     */
+    public Node get(Key key) {
+        Node node;
+        synchronized (nodes) {
+            node = nodes.get(key);
+        }
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return node.clone();
+    }
+
+    public void put(Key key, Node node) {
+        Node copy = node.clone();
+        synchronized (nodes) {
+            nodes.put(key, copy);
+        }
+    }
+
+    public void clear() {
+        synchronized (nodes) {
+            nodes.clear();
+        }
+    }
+
+    /**
+     * Clears the cache if the files of the index directory changed since the
+     * last check.
+     */
+    public void validate(String indexPath) {
+        long now = System.nanoTime();
+        long[] checked = indexSignatures.get(indexPath);
+        if (checked != null && now - checked[1] < INDEX_CHECK_NANOS) {
+            return;
+        }
+        long signature;
+        try {
+            signature = PhraseStatisticsSidecar.indexSignature(indexPath);
+        } catch (IOException x) {
+            // not a directory (e.g. a remote index) : nothing to check
+            signature = 0;
+        }
+        indexSignatures.put(indexPath, new long[]{signature, now});
+        if (checked != null && checked[0] != signature) {
+            clear();
+        }
+    }
+
+    public long size() {
+        synchronized (nodes) {
+            return nodes.size();
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RewriteCache[size=%d/%d, hits=%d, misses=%d]", size(), capacity, hitCount(), missCount());
+    }
+
+    /**
+     * Identifies a rewrite : feature configuration, index, terms, parts,
+     * effective lambdas, and the options that change the emitted nodes.
+     */
+    public static final class Key {
+        private final FeatureEngine engine;
+        private final String index;
+        private final String[] terms;
+        private final String countsPart;
+        private final String extentsPart;
+        private final double[][] lambdas;
+        private final String options;
+        private final int position;
+        private final int hash;
+
+        Key(FeatureEngine engine, String index, String[] terms, String countsPart, String extentsPart,
+            double[][] lambdas, String options, int position) {
+            this.engine = engine;
+            this.index = index;
+            this.terms = terms;
+            this.countsPart = countsPart;
+            this.extentsPart = extentsPart;
+            this.lambdas = lambdas;
+            this.options = options;
+            this.position = position;
+            int h = System.identityHashCode(engine);
+            h = 31 * h + index.hashCode();
+            h = 31 * h + Arrays.hashCode(terms);
+            h = 31 * h + countsPart.hashCode();
+            h = 31 * h + extentsPart.hashCode();
+            h = 31 * h + Arrays.deepHashCode(lambdas);
+            h = 31 * h + options.hashCode();
+            h = 31 * h + position;
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash
+                    && engine == k.engine
+                    && position == k.position
+                    && Arrays.equals(terms, k.terms)
+                    && Arrays.deepEquals(lambdas, k.lambdas)
+                    && countsPart.equals(k.countsPart)
+                    && extentsPart.equals(k.extentsPart)
+                    && options.equals(k.options)
+                    && index.equals(k.index);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package real_wsdm;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Approximate n-gram table : 4 bytes per slot instead of the keys and values
+ * of {@link HashNGramTable}, for tables (wiki trigrams) too big to keep exact.
+ * <p>
+ * There is no dictionary : the id of a term is a hash of the term, and an
+ * n-gram is stored as a 16 bit fingerprint of the hash of its ids and its
+ * count rounded on a log scale (16 bits) in an open addressing table. The
+ * feature is log(count), so the rounding is chosen from the relative error
+ * that is acceptable on the count ("error", e.g. 0.01 = 1%, before rounding
+ * to an integer). The other errors are false hits, on absent n-grams and on
+ * n-grams sharing a slot chain with one of the same fingerprint : about one
+ * in 2^16 per probed slot (the table is at most 70% full), plus the n-grams
+ * of colliding terms.
+ * <p>
+ * Layout (big-endian): <br>
+ * int magic, int version, long entries, long slots, double step <br>
+ * int slot[slots] : fingerprint &lt;&lt; 16 | quantized log count, 0 = empty <br>
+ * <p>
+ * Files are built from the TSV n-gram files with {@link #build}:
+ * <pre>
+ *   java -cp ... real_wsdm.SketchNGramTable wiki-ngrams.tsv wiki-ngrams.sketch [error]
+ * </pre>
+ *
+ * @author fsqcds
+ */
+public class SketchNGramTable implements NGramTable {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+
+    static final int MAGIC = 0x52575351; // "RWSQ"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    private static final double MAX_LOAD = 0.7;
+    private static final int MAX_SLOTS = 1 << 30;
+    private static final int MAX_QUANTUM = 0xFFFF;
+
+    private final String path;
+    private final int[] slots;
+    private final int mask;
+    private final long entries;
+    private final double step;
+
+    private SketchNGramTable(String path, int[] slots, long entries, double step) {
+        this.path = path;
+        this.slots = slots;
+        this.mask = slots.length - 1;
+        this.entries = entries;
+        this.step = step;
+    }
+
+    /**
+     * @return true if the file starts with the sketch magic number
+     */
+    public static boolean isSketch(String path) {
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            return new DataInputStream(in).readInt() == MAGIC;
+        } catch (IOException x) {
+            return false;
+        }
+    }
+
+    public static SketchNGramTable open(String path) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException(String.format("%s is not an n-gram sketch", path));
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("%s has unsupported sketch version %d, build it again", path, version));
+            }
+            long entries = header.getLong();
+            long slotCount = header.getLong();
+            double step = header.getDouble();
+            if (Long.bitCount(slotCount) != 1 || slotCount > MAX_SLOTS
+                    || channel.size() != HEADER_SIZE + 4 * slotCount) {
+                throw new IOException(String.format("%s is truncated or corrupted", path));
+            }
+
+            int[] slots = new int[(int) slotCount];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 24);
+            long position = HEADER_SIZE;
+            for (int done = 0; done < slots.length; ) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), 4L * (slots.length - done)));
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException(String.format("%s is truncated", path));
+                    }
+                    position += read;
+                }
+                buffer.flip();
+                int n = buffer.remaining() / 4;
+                buffer.asIntBuffer().get(slots, done, n);
+                done += n;
+            }
+            logger.info(String.format("Loaded sketch of %d n-grams (%d slots, step %.4f) from %s in %.2fs",
+                    entries, slotCount, step, path, (System.nanoTime() - start) / 1e9));
+            return new SketchNGramTable(path, slots, entries, step);
+        }
+    }
+
+    /**
+     * Term ids are hashes : never {@link #UNKNOWN_TERM}.
+     */
+    @Override
+    public int termId(String stemmedTerm) {
+        return hashTerm(stemmedTerm);
+    }
+
+    @Override
+    public int get(int[] ids, int offset, int order) {
+        long hash = NGramTable.hash(ids, offset, order);
+        int fingerprint = fingerprint(hash);
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            int value = slots[slot];
+            if (value == 0) {
+                return MISSING;
+            }
+            if (value >>> 16 == fingerprint) {
+                return count(value & MAX_QUANTUM, step);
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    /*
+     * 64 bit FNV-1a of the chars, folded to a non-negative int.
+     */
+    static int hashTerm(String term) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < term.length(); i++) {
+            h ^= term.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = LongIntMap.mix(h);
+        return (int) (h ^ (h >>> 32)) & 0x7FFFFFFF;
+    }
+
+    private static int fingerprint(long hash) {
+        int fingerprint = (int) (hash >>> 48);
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private static int quantize(long count, double step) {
+        return (int) Math.min(MAX_QUANTUM, 1 + Math.round(Math.log(count) / step));
+    }
+
+    private static int count(int quantum, double step) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(Math.exp((quantum - 1) * step)));
+    }
+
+    /**
+     * Builds the sketch of a TSV n-gram file ("gram gram\tcount" per line).
+     *
+     * @param error relative error allowed on the counts
+     */
+    public static void build(String tsvPath, String sketchPath, double error) throws IOException {
+        long start = System.nanoTime();
+        Path tsv = Paths.get(tsvPath);
+        // relative error of a count rounded to the nearest multiple of step on the log scale : exp(step / 2) - 1
+        double step = 2 * Math.log1p(error);
+
+        long lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(tsv, StandardCharsets.UTF_8)) {
+            while (reader.readLine() != null) {
+                lines++;
+            }
+        }
+        long slotCount = Long.highestOneBit(Math.max(16, (long) Math.ceil(lines / MAX_LOAD)) - 1) << 1;
+        if (slotCount > MAX_SLOTS) {
+            throw new IOException(String.format("%s has too many lines (%d) for a sketch", tsvPath, lines));
+        }
+        int[] slots = new int[(int) slotCount];
+        int mask = slots.length - 1;
+
+        long entries = 0;
+        long malformed = 0;
+        int[] ids = new int[3];
+        try (BufferedReader reader = Files.newBufferedReader(tsv, StandardCharsets.UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int tab = line.indexOf('\t');
+                long count;
+                try {
+                    count = tab > 0 ? Long.parseLong(line.substring(tab + 1).trim()) : -1;
+                } catch (NumberFormatException x) {
+                    count = -1;
+                }
+                String[] grams = tab > 0 ? line.substring(0, tab).split(" ") : new String[0];
+                if (count <= 0 || grams.length == 0 || grams.length > 3) {
+                    malformed++;
+                    continue;
+                }
+                for (int i = 0; i < grams.length; i++) {
+                    ids[i] = hashTerm(grams[i]);
+                }
+                long hash = NGramTable.hash(ids, 0, grams.length);
+                int value = fingerprint(hash) << 16 | quantize(count, step);
+                for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                    if (slots[slot] == 0) {
+                        slots[slot] = value;
+                        entries++;
+                        break;
+                    }
+                    if (slots[slot] >>> 16 == value >>> 16) {
+                        // same fingerprint : the same n-gram again (or a collision), keep the larger count
+                        slots[slot] = Math.max(slots[slot], value);
+                        break;
+                    }
+                }
+            }
+        }
+
+        Path tmp = Paths.get(sketchPath + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(entries);
+            out.writeLong(slotCount);
+            out.writeDouble(step);
+            for (int slot : slots) {
+                out.writeInt(slot);
+            }
+        }
+        Files.move(tmp, Paths.get(sketchPath), StandardCopyOption.REPLACE_EXISTING);
+        logger.info(String.format("Built sketch of %d n-grams (%d slots, %.1f MB, %d malformed lines skipped) from %s in %.1fs",
+                entries, slotCount, (HEADER_SIZE + 4.0 * slotCount) / (1 << 20), malformed, tsvPath,
+                (System.nanoTime() - start) / 1e9));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: SketchNGramTable ngrams.tsv ngrams.sketch [error]");
+            System.exit(1);
+        }
+        build(args[0], args[1], args.length > 2 ? Double.parseDouble(args[2]) : 0.01);
+    }
+}
@@ -0,0 +1,123 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.retrieval.query.Node;
+
+import java.util.Arrays;
+
+/**
+ * Cache key for the statistics of a feature node. Replaces the old
+ * {@code node.toString() + "-" + group} strings.
+ * <p>
+ * index : identity of the index the statistics come from <br>
+ * operator : "counts" for unigrams (and n-gram field terms), "od:N" for ordered windows,
+ * "uw:N" for unordered windows <br>
+ * terms : the window terms in order <br>
+ * part : index part the terms are read from <br>
+ * group : retrieval group, empty = default <br>
+ *
+ * @author fsqcds
+ */
+public final class StatisticsKey {
+    public final String index;
+    public final String operator;
+    public final String[] terms;
+    public final String part;
+    public final String group;
+    private final int hash;
+    private long longHash;
+
+    public StatisticsKey(String index, String operator, String part, String group, String... terms) {
+        this.index = index;
+        this.operator = operator;
+        this.terms = terms;
+        this.part = part;
+        this.group = group;
+        int h = index.hashCode();
+        h = 31 * h + operator.hashCode();
+        h = 31 * h + Arrays.hashCode(terms);
+        h = 31 * h + part.hashCode();
+        h = 31 * h + group.hashCode();
+        this.hash = h;
+    }
+
+    /**
+     * @return the node these statistics are computed for
+     */
+    public Node toNode() {
+        if (operator.startsWith("od:") || operator.startsWith("uw:")) {
+            Node node = new Node(operator.startsWith("od:") ? "ordered" : "unordered");
+            node.getNodeParameters().set("default", Long.parseLong(operator.substring(3)));
+            for (String term : terms) {
+                Node t = new Node("extents", term);
+                if (!part.isEmpty()) {
+                    t.getNodeParameters().set("part", part);
+                }
+                node.addChild(t);
+            }
+            return node;
+        }
+        Node node = new Node("counts", terms[0]);
+        if (!part.isEmpty()) {
+            node.getNodeParameters().set("part", part);
+        }
+        return node;
+    }
+
+    /**
+     * @return 64 bit hash of the key, never 0 (see {@link NegativeStatisticsCache})
+     */
+    public long longHash() {
+        long h = longHash;
+        if (h == 0) {
+            h = 0xcbf29ce484222325L;
+            h = fnv(h, index);
+            h = fnv(h, operator);
+            for (String term : terms) {
+                h = fnv(h, term);
+            }
+            h = fnv(h, part);
+            h = fnv(h, group);
+            h = LongIntMap.mix(h);
+            longHash = h = h == 0 ? 1 : h;
+        }
+        return h;
+    }
+
+    static long fnv(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // separator, "ab" "c" != "a" "bc"
+        h ^= 0xFFFF;
+        h *= 0x100000001b3L;
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StatisticsKey)) {
+            return false;
+        }
+        StatisticsKey k = (StatisticsKey) o;
+        return hash == k.hash
+                && operator.equals(k.operator)
+                && Arrays.equals(terms, k.terms)
+                && part.equals(k.part)
+                && group.equals(k.group)
+                && index.equals(k.index);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%s):part=%s:group=%s@%s", operator, String.join(" ", terms), part, group, index);
+    }
+}
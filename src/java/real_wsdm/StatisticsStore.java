@@ -0,0 +1,211 @@
+package real_wsdm;
+
+import org.lemurproject.galago.core.index.stats.NodeStatistics;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Statistics of the nodes resolved by the traversal (unigrams, n-gram terms,
+ * windows, zero ones included), kept across restarts in a local file
+ * ("rwsdmStatisticsStore" : path) : a new process answers the nodes the
+ * previous ones have seen without touching the index.
+ * <p>
+ * Nodes are identified by {@link StatisticsKey#longHash()}. The file is tied
+ * to the index by the signature of its files (see
+ * {@link PhraseStatisticsSidecar}) : a store of another version of the index
+ * is ignored and replaced at the next flush. New nodes are written every
+ * "rwsdmStatisticsStoreInterval" seconds (default 300) and at shutdown, at
+ * most "rwsdmStatisticsStoreSize" nodes (default 1000000) are kept.
+ * <p>
+ * Layout (big-endian): <br>
+ * int magic, int version, long index signature, UTF index, int count <br>
+ * {long hash, long nodeFrequency, long nodeDocumentCount}[count]
+ *
+ * @author fsqcds
+ */
+public class StatisticsStore {
+    private static final Logger logger = Logger.getLogger("RWSDM");
+
+    static final int MAGIC = 0x52575354; // "RWST"
+    static final int VERSION = 1;
+
+    private final Path path;
+    private final long signature;
+    private final String index;
+    private final int capacity;
+    private final Map<Long, long[]> statistics = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private volatile boolean dirty;
+    private ScheduledExecutorService flusher;
+
+    private StatisticsStore(Path path, long signature, String index, int capacity) {
+        this.path = path;
+        this.signature = signature;
+        this.index = index;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Loads the store of path if it was written for the index as it is now,
+     * starts empty otherwise.
+     */
+    public static StatisticsStore open(String path, String index, long signature, int capacity) {
+        StatisticsStore store = new StatisticsStore(Paths.get(path), signature, index, capacity);
+        if (!Files.exists(store.path)) {
+            logger.info(String.format("Statistics store %s does not exist yet", path));
+            return store;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(store.path), 1 << 20))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warning(String.format("Ignoring %s : not a statistics store of this version", path));
+                return store;
+            }
+            long stored = in.readLong();
+            String storedIndex = in.readUTF();
+            if (stored != signature) {
+                logger.warning(String.format("Ignoring %s : written for another version of %s", path, storedIndex));
+                return store;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count && i < capacity; i++) {
+                store.statistics.put(in.readLong(), new long[]{in.readLong(), in.readLong()});
+            }
+            logger.info(String.format("Loaded statistics of %d nodes of %s from %s", store.size(), storedIndex, path));
+        } catch (IOException x) {
+            System.err.format("IOException: %s%n", x);
+            store.statistics.clear();
+        }
+        return store;
+    }
+
+    /**
+     * @return signature of the files of the index ("index" : path or list of
+     * paths) of the global parameters
+     */
+    public static long indexSignature(Parameters globalParams) throws IOException {
+        if (globalParams.isString("index")) {
+            return PhraseStatisticsSidecar.indexSignature(globalParams.getString("index"));
+        }
+        if (!globalParams.isList("index", String.class)) {
+            throw new IOException("the statistics store needs local index directories");
+        }
+        long h = 0xcbf29ce484222325L;
+        for (String index : globalParams.getList("index", String.class)) {
+            h = LongIntMap.mix(h ^ PhraseStatisticsSidecar.indexSignature(index));
+        }
+        return h;
+    }
+
+    /**
+     * @return the stored statistics of the node, or null
+     */
+    public NodeStatistics get(StatisticsKey key) {
+        long[] stored = statistics.get(key.longHash());
+        if (stored == null) {
+            return null;
+        }
+        hits.increment();
+        NodeStatistics stats = new NodeStatistics();
+        stats.nodeFrequency = stored[0];
+        stats.nodeDocumentCount = stored[1];
+        return stats;
+    }
+
+    /**
+     * Adds the statistics the traversal loaded from the index.
+     */
+    public void record(StatisticsKey key, NodeStatistics stats) {
+        if (stats == null || statistics.size() >= capacity) {
+            return;
+        }
+        if (statistics.putIfAbsent(key.longHash(), new long[]{stats.nodeFrequency, stats.nodeDocumentCount}) == null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the store if nodes were added since the last flush.
+     */
+    public synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        Path tmp = Paths.get(path + ".tmp");
+        try {
+            int count;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 20))) {
+                // a snapshot : nodes added while writing go to the next flush
+                long[][] records = new long[statistics.size()][];
+                count = 0;
+                for (Map.Entry<Long, long[]> entry : statistics.entrySet()) {
+                    if (count == records.length) {
+                        dirty = true;
+                        break;
+                    }
+                    records[count++] = new long[]{entry.getKey(), entry.getValue()[0], entry.getValue()[1]};
+                }
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(signature);
+                out.writeUTF(index);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(records[i][0]);
+                    out.writeLong(records[i][1]);
+                    out.writeLong(records[i][2]);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            logger.info(String.format("Wrote statistics of %d nodes into %s", count, path));
+        } catch (IOException x) {
+            System.err.format("IOException: %s%n", x);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Flushes every intervalSeconds and at shutdown.
+     */
+    public synchronized void startFlushing(long intervalSeconds) {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rwsdm-statistics-store");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "rwsdm-statistics-store-shutdown"));
+    }
+
+    public int size() {
+        return statistics.size();
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StatisticsStore[%s, size=%d/%d, hits=%d]", path, size(), capacity, hitCount());
+    }
+}
@@ -0,0 +1,76 @@
+(ns real-wsdm.clause-pruner-test
+  (:require [clojure.test :refer :all])
+  (:import org.lemurproject.galago.utility.Parameters
+           java.util.Random))
+
+(def ^:private pruner-class (Class/forName "real_wsdm.ClausePruner"))
+
+(defn- method
+  [name & types]
+  (doto (.getDeclaredMethod pruner-class name (into-array Class types))
+    (.setAccessible true)))
+
+(defn- pruner
+  "the package-private ClausePruner of the query parameters, or nil"
+  [query-params]
+  (let [params (Parameters/create)]
+    (doseq [[k v] query-params]
+      (.set params (name k) v))
+    (.invoke (method "create" Parameters Parameters) nil (object-array [(Parameters/create) params]))))
+
+(defn- kept
+  "#{[order offset]} of the clauses the pruner keeps"
+  [pruner weights]
+  (let [keep (.invoke (method "keep" (class (make-array Double/TYPE 0 0))) pruner
+                      (object-array [(into-array (class (double-array 0)) (map #(some-> % double-array) weights))]))]
+    (set (for [order (range (count weights))
+               :when (aget keep order)
+               offset (range (count (aget keep order)))
+               :when (aget keep order offset)]
+           [order offset]))))
+
+(defn- naive-kept
+  [{:keys [rwsdmPruneThreshold rwsdmPruneTopK rwsdmClauseBudget]
+    :or {rwsdmPruneThreshold Double/NEGATIVE_INFINITY rwsdmPruneTopK 0 rwsdmClauseBudget 0}}
+   weights]
+  (let [best (fn [clauses n]
+               (cond->> (sort-by (fn [[order offset]] [(- (get-in weights [order offset])) order offset]) clauses)
+                 (pos? n) (take n)))]
+    (set (best (mapcat (fn [order]
+                         (best (for [offset (range (count (weights order)))
+                                     :when (>= (get-in weights [order offset]) rwsdmPruneThreshold)]
+                                 [order offset])
+                               rwsdmPruneTopK))
+                       (filter weights (range (count weights))))
+               rwsdmClauseBudget))))
+
+(deftest pruning-is-off-by-default
+  (is (nil? (pruner {}))))
+
+(deftest hand-picked-cases
+  (let [weights [nil nil [0.5 0.1 0.3 0.3] [0.2 0.4 0.05]]]
+    (is (= #{[2 0] [2 2] [2 3] [3 0] [3 1]}
+           (kept (pruner {:rwsdmPruneThreshold 0.2}) weights)))
+    (is (= #{[2 0] [2 2] [3 1] [3 0]}
+           (kept (pruner {:rwsdmPruneTopK 2}) weights))
+        "ties keep the leftmost clause")
+    (is (= #{[2 0] [3 1] [2 2]}
+           (kept (pruner {:rwsdmClauseBudget 3}) weights)))
+    (is (= #{[2 0] [3 1]}
+           (kept (pruner {:rwsdmPruneThreshold 0.25 :rwsdmPruneTopK 1 :rwsdmClauseBudget 5}) weights)))
+    (is (= #{} (kept (pruner {:rwsdmPruneThreshold 1.0}) weights)))))
+
+(deftest random-weights-match-naive-pruning
+  (let [random (Random. 11)]
+    (dotimes [_ 200]
+      (let [terms (+ 2 (.nextInt random 12))
+            ; few distinct values so that ties happen
+            weight #(/ (.nextInt random 8) 8.0)
+            weights [nil nil (vec (repeatedly (- terms 1) weight)) (vec (repeatedly (max 0 (- terms 2)) weight))]
+            params (cond-> {}
+                     (.nextBoolean random) (assoc :rwsdmPruneThreshold (weight))
+                     (.nextBoolean random) (assoc :rwsdmPruneTopK (long (inc (.nextInt random 4))))
+                     (.nextBoolean random) (assoc :rwsdmClauseBudget (long (inc (.nextInt random 6)))))]
+        (when (seq params)
+          (is (= (naive-kept params weights) (kept (pruner params) weights))
+              (pr-str params weights)))))))
@@ -0,0 +1,120 @@
+(ns real-wsdm.feature-engine-test
+  (:require [clojure.test :refer :all])
+  (:import (real_wsdm FeatureEngine FeatureEngine$StatisticsSource StatisticsKey
+                      RealWSDMTraversal RealWSDMTraversal$RWSDMFeature)
+           org.lemurproject.galago.core.index.stats.NodeStatistics
+           org.lemurproject.galago.core.retrieval.Retrieval
+           org.lemurproject.galago.core.retrieval.query.NodeParameters
+           org.lemurproject.galago.utility.Parameters
+           java.util.HashSet
+           (java.util.logging Handler Logger)))
+
+(defn- side-engine
+  "engine with one unigram logtf feature read from the side group"
+  []
+  (doto (FeatureEngine. [(RealWSDMTraversal$RWSDMFeature. (doto (Parameters/create)
+                                                             (.set "name" "1-side-lntf")
+                                                             (.set "group" "side")))]
+                        []
+                        [])
+    (.enableVectorCache 100)))
+
+(defn- source
+  "statistics source answering frequency for every key, zero for the timed out ones
+  (what the traversal answers for a group that missed rwsdmGroupTimeout)"
+  [frequency timed-out]
+  (reify FeatureEngine$StatisticsSource
+    (get [_ key]
+      (doto (NodeStatistics.)
+        (-> .nodeFrequency (set! (if (contains? timed-out key) 0 frequency)))))))
+
+(defn- evaluator
+  [engine source]
+  (.evaluator engine "index" (into-array String ["term"]) (NodeParameters.) (Parameters/create)
+              source "postings" "postings" false))
+
+(deftest timed-out-statistics-are-not-cached
+  (let [engine (side-engine)
+        side-key (StatisticsKey. "index" "counts" "postings" "side" (into-array String ["term"]))
+        timed-out #{side-key}]
+    (testing "a clause reading a timed out group does not contribute and is not kept"
+      (let [weights (doto (evaluator engine (source 100 timed-out))
+                      (.exclude (HashSet. timed-out)))]
+        (is (= 0.0 (.weight weights 1 0)))
+        (is (zero? (.vectorCacheSize engine)))))
+    (testing "the timed out keys belong to their rewrite"
+      ; the source would answer : only the evaluator excluding the keys ignores it
+      (let [excluding (doto (evaluator (side-engine) (source 100 #{}))
+                        (.exclude (HashSet. timed-out)))
+            concurrent (evaluator (side-engine) (source 100 #{}))]
+        (is (= 0.0 (.weight excluding 1 0)))
+        (is (= (Math/log 100) (.weight concurrent 1 0)))))
+    (testing "the next rewrite reads the statistics and keeps them"
+      (let [weights (evaluator engine (source 100 #{}))]
+        (is (= (Math/log 100) (.weight weights 1 0)))
+        (is (= 1 (.vectorCacheSize engine)))
+        (is (= (Math/log 100) (.weight (evaluator engine (source 0 #{})) 1 0))
+            "later rewrites are answered from the cached vector")))))
+
+(defn- zero-lambda-rewrite
+  "weights the unigram with a zero-lambda logdf feature on its own part :
+  [names of the features verboseRWSDM logs, parts of the statistics looked up]"
+  [verbose]
+  (let [feature #(RealWSDMTraversal$RWSDMFeature. (reduce (fn [p [k v]] (doto p (.set k v))) (Parameters/create) %))
+        engine (FeatureEngine. [(feature {"name" "1-lntf"})
+                                (feature {"name" "1-const" "type" "const"})
+                                (feature {"name" "1-off" "type" "logdf" "part" "postings.off"})]
+                               []
+                               [])
+        messages (atom [])
+        parts (atom [])
+        handler (proxy [Handler] []
+                  (publish [record] (swap! messages conj (.getMessage record)))
+                  (flush [])
+                  (close []))
+        logger (Logger/getLogger "RWSDM")]
+    (.addHandler logger handler)
+    (try
+      (.weight (.evaluator engine "index" (into-array String ["term"]) (NodeParameters.)
+                           (doto (Parameters/create) (.set "1-off" 0.0) (.set "1-const" 0.0))
+                           (reify FeatureEngine$StatisticsSource
+                             (get [_ key]
+                               (swap! parts conj (.part key))
+                               (doto (NodeStatistics.)
+                                 (-> .nodeFrequency (set! 100))
+                                 (-> .nodeDocumentCount (set! 10)))))
+                           "postings" "postings" verbose)
+               1 0)
+      [(set (keep #(second (re-find #"feature:([^:]+):" %)) @messages)) @parts]
+      (finally
+        (.removeHandler logger handler)))))
+
+(deftest zero-lambda-features-are-not-looked-up
+  (testing "verbose logs what is computed, and computes what a normal rewrite does"
+    (is (= [#{"1-lntf" "1-const"} ["postings"]] (zero-lambda-rewrite true))))
+  (is (= [#{} ["postings"]] (zero-lambda-rewrite false))))
+
+(defn- field
+  "value of the private field of the object"
+  [object class name]
+  (.get (doto (.getDeclaredField class name) (.setAccessible true)) object))
+
+(defn- retrieval
+  [vector-cache]
+  (let [parameters (doto (Parameters/create) (.set "rwsdmFeatureVectorCache" vector-cache))]
+    (reify Retrieval
+      (getGlobalParameters [_] parameters))))
+
+(defn- traversal-engine
+  [retrieval]
+  (field (RealWSDMTraversal. retrieval) RealWSDMTraversal "engine"))
+
+(deftest features-are-compiled-per-retrieval
+  (let [cached (retrieval true)
+        plain (retrieval false)
+        engine (traversal-engine cached)]
+    (is (identical? engine (traversal-engine cached)))
+    (testing "the vector cache of one retrieval is not turned on for another"
+      (is (not (identical? engine (traversal-engine plain))))
+      (is (some? (field engine FeatureEngine "vectors")))
+      (is (nil? (field (traversal-engine plain) FeatureEngine "vectors"))))))
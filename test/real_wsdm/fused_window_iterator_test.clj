@@ -0,0 +1,111 @@
+(ns real-wsdm.fused-window-iterator-test
+  (:require [clojure.test :refer :all])
+  (:import real_wsdm.FusedWindowIterator
+           (org.lemurproject.galago.core.retrieval.iterator ExtentIterator LengthsIterator)
+           org.lemurproject.galago.core.retrieval.processing.ScoringContext
+           org.lemurproject.galago.core.retrieval.query.NodeParameters
+           org.lemurproject.galago.core.util.ExtentArray
+           java.util.Random))
+
+(defn- extents
+  "extent iterator of a term over {document [term]}"
+  [documents term]
+  (let [positions (into (sorted-map) (for [[document terms] documents
+                                           :let [ps (keep-indexed #(when (= term %2) %1) terms)]
+                                           :when (seq ps)]
+                                       [document ps]))]
+    (reify ExtentIterator
+      (extents [_ c]
+        (let [array (ExtentArray.)]
+          (doseq [p (get positions (.document c))]
+            (.add array (int p)))
+          array))
+      (count [_ c] (count (get positions (.document c))))
+      (hasMatch [_ c] (contains? positions (.document c)))
+      (isDone [_] false)
+      (reset [_])
+      (syncTo [_ _])
+      (movePast [_ _])
+      (currentCandidate [_] 0)
+      (hasAllCandidates [_] false)
+      (totalEntries [_] (count positions)))))
+
+(defn- lengths
+  [documents]
+  (reify LengthsIterator
+    (length [_ c] (count (documents (.document c))))
+    (reset [_])
+    (syncTo [_ _])))
+
+(defn- ordered-count
+  "#od:1 : occurrences of the phrase"
+  [terms window]
+  (count (filter #(= window %) (partition (count window) 1 terms))))
+
+(defn- unordered-count
+  "#uw:width like the unordered window iterator : advance the leftmost term
+  of the current window until one of the terms runs out"
+  [terms window width]
+  (let [positions (mapv (fn [term] (vec (keep-indexed #(when (= term %2) %1) terms))) window)]
+    (if (some empty? positions)
+      0
+      (loop [cursors (vec (repeat (count window) 0))
+             maximum (apply max (map #(inc (first %)) positions))
+             total 0]
+        (let [begins (map-indexed #(get-in positions [%1 %2]) cursors)
+              minimum (apply min begins)
+              first-term (.indexOf (vec begins) minimum)
+              total (if (<= (- maximum minimum) width) (inc total) total)
+              cursor (inc (cursors first-term))]
+          (if (>= cursor (count (positions first-term)))
+            total
+            (recur (assoc cursors first-term cursor)
+                   (max maximum (inc (get-in positions [first-term cursor])))
+                   total)))))))
+
+(defn- dirichlet
+  [count length frequency collection-length mu]
+  (let [background (if (pos? frequency) (/ (double frequency) collection-length) (/ 0.5 collection-length))]
+    (Math/log (/ (+ count (* mu background)) (+ length mu)))))
+
+(defn- random-documents
+  [n seed]
+  (let [random (Random. seed)
+        vocabulary ["a" "b" "c" "x" "y"]]
+    (into {} (for [document (range n)]
+               [document (vec (repeatedly (+ 1 (.nextInt random 40)) #(vocabulary (.nextInt random 5))))]))))
+
+(deftest unordered-count-reference
+  ; "a b" windows of width 8 in "a x b a"
+  (is (= 2 (unordered-count ["a" "x" "b" "a"] ["a" "b"] 8)))
+  (is (= 1 (unordered-count ["a" "x" "x" "b"] ["a" "b"] 4)))
+  (is (= 0 (unordered-count ["a" "x" "x" "b"] ["a" "b"] 3))))
+
+(deftest fused-scores-match-separate-windows
+  (let [documents (random-documents 300 12)
+        collection-length (reduce + (map count (vals documents)))
+        mu 1500.0]
+    (doseq [window [["a" "b"] ["b" "a"] ["a" "b" "c"] ["c" "x" "a"]]
+            width [4 8]
+            :let [od-frequency (reduce + (map #(ordered-count % window) (vals documents)))
+                  uw-frequency (reduce + (map #(unordered-count % window width) (vals documents)))
+                  np (doto (NodeParameters.)
+                       (.set "odWidth" 1)
+                       (.set "uwWidth" (long width))
+                       (.set "mu" mu)
+                       (.set "collectionLength" (long collection-length))
+                       (.set "maxLength" (long (apply max (map count (vals documents)))))
+                       (.set "odFrequency" (long od-frequency))
+                       (.set "uwFrequency" (long uw-frequency)))
+                  fused (FusedWindowIterator. np (lengths documents)
+                                              (into-array ExtentIterator (map #(extents documents %) window)))]]
+      (testing (str window " uw:" width)
+        (is (< Double/NEGATIVE_INFINITY (.minimumScore fused) (.maximumScore fused) Double/POSITIVE_INFINITY))
+        (doseq [[document terms] documents
+                :let [c (doto (ScoringContext.) (-> .document (set! document)))
+                      length (count terms)
+                      expected (+ (* 0.5 (dirichlet (ordered-count terms window) length od-frequency collection-length mu))
+                                  (* 0.5 (dirichlet (unordered-count terms window width) length uw-frequency collection-length mu)))
+                      score (.score fused c)]]
+          (is (< (Math/abs (- expected score)) 1e-9) (str document " " terms))
+          (is (<= (.minimumScore fused) score (.maximumScore fused))))))))
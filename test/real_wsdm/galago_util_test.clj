@@ -0,0 +1,70 @@
+(ns real-wsdm.galago-util-test
+  (:require [clojure.test :refer :all]
+            [clojure.string :as str]
+            [real-wsdm.galago-util :refer :all]
+            [real-wsdm.test-util :refer :all])
+  (:import (org.lemurproject.galago.core.eval QuerySetJudgments QuerySetResults)
+           org.lemurproject.galago.core.eval.aggregate.Mean
+           org.lemurproject.galago.core.eval.metric.AveragePrecision
+           org.lemurproject.galago.core.retrieval.ScoredDocument))
+
+(def ^:private qrels
+  ["1 0 d1 2"
+   "1 0 d2 1"
+   "1 0 d3 0"
+   "1 0 d4 -1"
+   "1 0 d9 1"
+   ; graded, nothing above 0 retrieved
+   "2 0 d1 3"
+   "2 0 d5 0"
+   ; no relevant documents
+   "3 0 d1 0"
+   "3 0 d2 0"
+   "5 0 d1 1"])
+
+(def ^:private runs
+  {"1" ["d3" "d1" "d4" "d2" "d5"]
+   "2" ["d5" "d2"]
+   "3" ["d1" "d2"]
+   ; not judged
+   "4" ["d1"]
+   "5" ["d2" "d3" "d1" "d1"]})
+
+(defn- ranked-list
+  [names]
+  (vec (map-indexed (fn [i name]
+                      (doto (ScoredDocument. (long i) (- 10.0 i))
+                        (-> .documentName (set! name))
+                        (-> .rank (set! (int (inc i))))))
+                    names)))
+
+(defn- write-run
+  "TREC run file of the topics ({number [document]})"
+  [topics]
+  (let [file (tmp-file ".run")]
+    (spit file (str/join (for [[number names] (sort topics)
+                               [i name] (map-indexed vector names)]
+                           (format "%s Q0 %s %d %f test\n" number name (inc i) (- 10.0 i)))))
+    (str file)))
+
+(defn- galago-map
+  [qrels-path topics]
+  (.evaluate (Mean. "map" (AveragePrecision. "map"))
+             (QuerySetResults. (write-run topics))
+             (QuerySetJudgments. qrels-path false true)))
+
+(deftest average-precision-matches-galago
+  (let [qrels-path (let [file (tmp-file ".qrels")] (spit file (str/join "\n" qrels)) (str file))
+        judgments (read-judgments qrels-path)
+        aps (reduce (fn [acc [number names]] ((average-precisions judgments) acc number (ranked-list names)))
+                    {} runs)]
+    (is (= {"1" #{"d1" "d2" "d9"} "2" #{"d1"} "5" #{"d1"}} judgments))
+    (is (= #{"1" "2" "5"} (set (keys aps))))
+    (is (== (/ (+ 1/2 2/4) 3) (aps "1")))
+    (doseq [[number ap] aps]
+      (is (< (Math/abs (- (galago-map qrels-path {number (runs number)}) ap)) 1e-9) number))
+    (testing "MAP over the judged topics"
+      (let [{:keys [sum evaluated]} (reduce (fn [acc [number names]]
+                                              ((incremental-map judgments (count aps) nil) acc number (ranked-list names)))
+                                            {:sum 0.0 :evaluated 0} runs)]
+        (is (< (Math/abs (- (galago-map qrels-path runs) (/ sum evaluated))) 1e-9))))))
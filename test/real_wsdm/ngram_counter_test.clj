@@ -0,0 +1,48 @@
+(ns real-wsdm.ngram-counter-test
+  (:require [clojure.test :refer :all]
+            [clojure.string :as str]
+            [real-wsdm.test-util :refer :all])
+  (:import real_wsdm.NGramCounter
+           java.io.StringWriter
+           java.nio.file.Paths
+           java.util.Random))
+
+(defn- random-text
+  "lines of space separated terms that the tokenizer and stemmer keep as is"
+  [lines seed]
+  (let [random (Random. seed)]
+    (vec (repeatedly lines (fn []
+                             (str/join " " (repeatedly (+ 1 (.nextInt random 12))
+                                                       #(str "t" (.nextInt random 40)))))))))
+
+(defn- naive-counts
+  "{ngram count} of the unigrams, bigrams and trigrams of every line"
+  [lines]
+  (frequencies (for [line lines
+                     :let [terms (str/split line #" ")]
+                     order [1 2 3]
+                     ngram (partition order 1 terms)]
+                 (str/join " " ngram))))
+
+(defn- counted
+  [lines threads max-entries min-count]
+  (let [input (tmp-file ".txt")
+        out (StringWriter.)]
+    (spit input (str/join "\n" lines))
+    (.count (NGramCounter. threads max-entries min-count (Paths/get (System/getProperty "java.io.tmpdir") (into-array String [])))
+            (str input) out)
+    (into {} (for [line (str/split-lines (str out))
+                   :let [[ngram count] (str/split line #"\t")]]
+               [ngram (Long/parseLong count)]))))
+
+(deftest counts-match-naive-count
+  (let [lines (random-text 5000 6)
+        expected (naive-counts lines)]
+    (testing "in memory"
+      (is (= expected (counted lines 1 1000000 1))))
+    (testing "spilled runs merged across workers"
+      ; 4096 entries in memory at most : hundreds of runs per order
+      (is (= expected (counted lines 4 4096 1))))
+    (testing "minCount applies to the merged totals"
+      (is (= (into {} (filter #(>= (val %) 3) expected))
+             (counted lines 4 4096 3))))))
@@ -0,0 +1,62 @@
+(ns real-wsdm.ngram-table-loader-test
+  (:require [clojure.test :refer :all]
+            [clojure.java.io :as io]
+            [clojure.string :as str]
+            [real-wsdm.test-util :refer :all])
+  (:import (real_wsdm HashNGramTable NGramTableLoader)))
+
+(defn- baseline-values
+  "the line.split reader the loader replaced : {ngram count}, later lines win"
+  [path]
+  (with-open [reader (io/reader path)]
+    (reduce (fn [values line]
+              (let [parts (str/split line #"\t")]
+                (assoc values (str/join " " (str/split (first parts) #" ")) (Integer/parseInt (second parts)))))
+            {}
+            (line-seq reader))))
+
+(defn- fixture
+  "TSV larger than one loader chunk, with repeated n-grams, extra columns
+  and negative counts"
+  []
+  (let [ngrams (random-ngrams 100000 5)
+        lines (concat ["x1 x2\t5"
+                       "x3\t17\tsource=wiki"
+                       "x4 x5\t-3"]
+                      (for [[ngram count] ngrams] (str ngram "\t" count))
+                      ["x1 x2\t9"
+                       "x6 x7 x8\t21\t\textra"])
+        file (tmp-file ".tsv")]
+    (spit file (str/join "\n" lines))
+    (str file)))
+
+(deftest loader-matches-baseline-reader
+  (let [path (fixture)
+        expected (baseline-values path)]
+    (is (= 9 (expected "x1 x2")))
+    (is (= 17 (expected "x3")))
+    (is (= -3 (expected "x4 x5")))
+    (doseq [threads [1 4]]
+      (testing (str threads " threads")
+        (let [table (NGramTableLoader/load path threads)]
+          (is (= (count expected) (.size table)))
+          (is (= expected (lookups table (keys expected)))))))
+    (testing "HashNGramTable.put"
+      (let [table (HashNGramTable.)]
+        (doseq [[ngram count] expected]
+          (.put table ngram (int count)))
+        (is (= expected (lookups table (keys expected))))))))
+
+(deftest malformed-lines-are-skipped
+  (let [path (write-tsv {})]
+    (spit path (str/join "\n" ["t1\t3"
+                               "no tab"
+                               "t2\tmany"
+                               "t3\t-1"
+                               "t4  t5\t2"
+                               "t6\t99999999999"
+                               "t7 t8 t9 t10\t4"
+                               "t11\t 6 "]))
+    (let [table (NGramTableLoader/load path 1)]
+      (is (= {"t1" 3 "t11" 6} (lookups table ["t1" "t2" "t3" "t6" "t7 t8 t9" "t11"])))
+      (is (nil? (lookup table "t3")) "-1 would read as MISSING"))))
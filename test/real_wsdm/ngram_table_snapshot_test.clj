@@ -0,0 +1,50 @@
+(ns real-wsdm.ngram-table-snapshot-test
+  (:require [clojure.test :refer :all]
+            [real-wsdm.test-util :refer :all])
+  (:import (real_wsdm NGramTableLoader NGramTableSnapshot)
+           java.io.RandomAccessFile
+           java.nio.charset.StandardCharsets
+           java.nio.file.Paths))
+
+(deftest snapshot-round-trip
+  (let [ngrams (random-ngrams 5000 1)
+        path (write-tsv ngrams)
+        table (NGramTableLoader/load path)]
+    (NGramTableSnapshot/write table path)
+    (let [restored (NGramTableSnapshot/load path)]
+      (is restored)
+      (is (= (.size table) (.size restored)))
+      (is (= ngrams (lookups restored (keys ngrams))))
+      (is (nil? (lookup restored "t1 unknown"))))))
+
+(defn- corrupt
+  "overwrites the int at offset of the file"
+  [path offset value]
+  (with-open [file (RandomAccessFile. (str path) "rw")]
+    (.seek file offset)
+    (.writeInt file value)))
+
+(deftest corrupted-snapshots-are-ignored
+  (let [path (write-tsv (random-ngrams 2000 2))
+        snapshot (NGramTableSnapshot/snapshotPath path)
+        source (-> (Paths/get path (into-array String [])) .toAbsolutePath .normalize str)
+        ; magic, version, path length, path, size, modified, entries
+        terms-offset (+ 4 4 4 (count (.getBytes source StandardCharsets/UTF_8)) 8 8 8)
+        write #(NGramTableSnapshot/write (NGramTableLoader/load path) path)]
+    (testing "truncated"
+      (write)
+      (with-open [file (RandomAccessFile. snapshot "rw")]
+        (.setLength file (quot (.length file) 2)))
+      (is (nil? (NGramTableSnapshot/load path))))
+    (testing "negative term count"
+      (write)
+      (corrupt snapshot terms-offset -5)
+      (is (nil? (NGramTableSnapshot/load path))))
+    (testing "term count larger than the file"
+      (write)
+      (corrupt snapshot terms-offset Integer/MAX_VALUE)
+      (is (nil? (NGramTableSnapshot/load path))))
+    (testing "flipped payload byte"
+      (write)
+      (corrupt snapshot (+ terms-offset 8) 0x7a7a7a7a)
+      (is (nil? (NGramTableSnapshot/load path))))))
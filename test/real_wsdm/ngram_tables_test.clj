@@ -0,0 +1,46 @@
+(ns real-wsdm.ngram-tables-test
+  (:require [clojure.test :refer :all]
+            [clojure.string :as str]
+            [real-wsdm.test-util :refer :all])
+  (:import (real_wsdm FeatureEngine MappedNGramTable NGramTable RealWSDMTraversal$RWSDMFeature)
+           org.lemurproject.galago.core.retrieval.query.NodeParameters
+           org.lemurproject.galago.utility.Parameters))
+
+(deftest mapped-lexicon-round-trip
+  (let [ngrams (random-ngrams 5000 3)
+        path (write-tsv ngrams)
+        lexicon (tmp-path ".bin")]
+    (MappedNGramTable/convert path lexicon)
+    (is (MappedNGramTable/isLexicon lexicon))
+    (is (not (MappedNGramTable/isLexicon path)))
+    (let [table (MappedNGramTable/open lexicon)]
+      (is (= (count ngrams) (.size table)))
+      (is (= ngrams (lookups table (keys ngrams))))
+      (is (= NGramTable/UNKNOWN_TERM (.termId table "unknown")))
+      (is (nil? (lookup table "t1 unknown t2"))))))
+
+(defn- external-feature
+  [name path order]
+  (RealWSDMTraversal$RWSDMFeature. (doto (Parameters/create)
+                                     (.set "name" name)
+                                     (.set "type" "external")
+                                     (.set "path" path)
+                                     (.set "unigram" (= order 1))
+                                     (.set "bigram" (= order 2))
+                                     (.set "trigram" (= order 3)))))
+
+(deftest external-features-look-up-term-ids
+  (let [ngrams (assoc (random-ngrams 2000 4) "t1 t2 t3" 7 "t1 t2" 11 "t2" 13)
+        path (write-tsv ngrams)
+        engine (FeatureEngine. [(external-feature "1-ext" path 1)]
+                               [(external-feature "2-ext" path 2)]
+                               [(external-feature "3-ext" path 3)])
+        terms ["t1" "t2" "t3" "unknown" "t2"]
+        weights (.evaluator engine "index" (into-array String terms) (NodeParameters.) (Parameters/create)
+                            nil "postings" "postings" false)]
+    (doseq [order [1 2 3]
+            offset (range (- (count terms) order -1))
+            :let [ngram (str/join " " (subvec terms offset (+ offset order)))
+                  value (get ngrams ngram)]]
+      (is (= (if value (Math/log value) 0.0) (.weight weights order offset))
+          ngram))))
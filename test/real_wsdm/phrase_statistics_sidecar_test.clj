@@ -0,0 +1,119 @@
+(ns real-wsdm.phrase-statistics-sidecar-test
+  (:require [clojure.test :refer :all]
+            [clojure.java.io :as io]
+            [clojure.string :as str]
+            [real-wsdm.test-util :refer :all])
+  (:import (real_wsdm PhraseStatisticsSidecar StatisticsKey)
+           org.lemurproject.galago.core.index.stats.NodeStatistics
+           org.lemurproject.galago.core.retrieval.Retrieval
+           org.lemurproject.galago.utility.Parameters
+           java.io.DataOutputStream
+           java.nio.file.Files
+           java.nio.file.attribute.FileAttribute))
+
+(defn- static-call
+  "calls a package-private static method of PhraseStatisticsSidecar"
+  [name types & args]
+  (-> (doto (.getDeclaredMethod PhraseStatisticsSidecar name (into-array Class types))
+        (.setAccessible true))
+      (.invoke nil (object-array args))))
+
+(defn- phrase-hash
+  [part terms]
+  (static-call "hash" [String (class (into-array String []))] part (into-array String terms)))
+
+(defn- write-sidecar
+  "writes {[terms] [frequency documentCount]} in the sidecar layout of the build"
+  [path index part phrases]
+  (let [records (sort-by first (for [[terms [frequency document-count]] phrases]
+                                 [(phrase-hash part terms) frequency document-count]))]
+    (with-open [out (DataOutputStream. (io/output-stream path))]
+      (.writeInt out (int 0x52575053))
+      (.writeInt out 1)
+      (.writeLong out (static-call "indexSignature" [String] index))
+      (.writeUTF out index)
+      (.writeInt out (count records))
+      (doseq [[hash frequency document-count] records]
+        (.writeLong out hash)
+        (.writeLong out frequency)
+        (.writeLong out document-count)))))
+
+(defn- od-key
+  [part group & terms]
+  (StatisticsKey. "index" "od:1" part group (into-array String terms)))
+
+(defn- index-dir
+  "temp index directory with a postings file"
+  []
+  (let [index (doto (.toFile (Files/createTempDirectory "rwsdm-index" (into-array FileAttribute [])))
+                (.deleteOnExit))
+        postings (doto (io/file index "postings") (.deleteOnExit))]
+    (spit postings "postings")
+    [index postings]))
+
+(deftest sidecar-round-trip
+  (let [[index postings] (index-dir)
+        path (tmp-path ".phrases")
+        phrases (into {} (for [i (range 1000)]
+                           [(if (even? i) [(str "t" i) (str "u" i)] [(str "t" i) (str "u" i) (str "v" i)])
+                            [(* 3 i) i]]))]
+    (write-sidecar path (str index) "postings" phrases)
+    (let [sidecar (PhraseStatisticsSidecar/open path)]
+      (is (= (count phrases) (.size sidecar)))
+      (doseq [[terms [frequency document-count]] phrases
+              :let [stats (.get sidecar (apply od-key "postings" "" terms))]]
+        (is (= [frequency document-count] [(.nodeFrequency stats) (.nodeDocumentCount stats)])
+            (pr-str terms)))
+      (is (nil? (.get sidecar (od-key "postings" "" "t1" "u2"))) "absent phrase")
+      (is (nil? (.get sidecar (od-key "postings.krovetz" "" "t0" "u0"))) "other part")
+      (is (nil? (.get sidecar (od-key "postings" "title" "t0" "u0"))) "grouped node")
+      (is (nil? (.get sidecar (StatisticsKey. "index" "uw:8" "postings" "" (into-array String ["t0" "u0"]))))
+          "other operator")
+      (testing "index signature"
+        (is (.matches sidecar (str index)))
+        (spit postings "rebuilt postings")
+        (is (not (.matches sidecar (str index))))
+        (is (not (.matches sidecar (str index "-missing"))))))))
+
+(defn- phrase-statistics
+  "[frequency documentCount] of the phrase (#od:1) in the documents (lists of terms)"
+  [documents terms]
+  (let [matches (for [document documents]
+                  (count (filter #{terms} (partition (count terms) 1 document))))]
+    [(reduce + matches) (count (remove zero? matches))]))
+
+(defn- memory-retrieval
+  "retrieval answering the #od:1 statistics of the documents, records the parts asked for"
+  [documents parts]
+  (reify Retrieval
+    (getGlobalParameters [_] (Parameters/create))
+    (getNodeStatistics [_ node]
+      (let [terms (map #(.getDefaultParameter %) (.getInternalNodes node))
+            [frequency document-count] (phrase-statistics documents terms)]
+        (swap! parts into (map #(.get (.getNodeParameters %) "part" "") (.getInternalNodes node)))
+        (doto (NodeStatistics.)
+          (-> .nodeFrequency (set! frequency))
+          (-> .nodeDocumentCount (set! document-count)))))))
+
+(deftest build-from-an-index
+  (let [[index] (index-dir)
+        documents [["the" "quick" "brown" "fox"]
+                   ["a" "quick" "brown" "dog" "and" "a" "quick" "brown" "fox"]
+                   ["brown" "fox"]]
+        candidates (tmp-file ".txt")
+        path (tmp-path ".phrases")
+        parts (atom #{})]
+    (spit candidates (str/join "\n" ["Quick-Brown fox" "lazy dog" "quick brown"]))
+    (PhraseStatisticsSidecar/build (memory-retrieval documents parts) (str index) (str candidates) path 2 "postings")
+    (is (= #{"postings"} @parts))
+    (let [sidecar (PhraseStatisticsSidecar/open path)
+          statistics #(when-let [stats (.get sidecar (apply od-key "postings" "" %&))]
+                        [(.nodeFrequency stats) (.nodeDocumentCount stats)])]
+      (testing "every bigram and trigram of the tokenized candidates, zero ones included"
+        (is (= 4 (.size sidecar)))
+        (doseq [terms [["quick" "brown"] ["brown" "fox"] ["quick" "brown" "fox"] ["lazy" "dog"]]]
+          (is (= (phrase-statistics documents terms) (apply statistics terms)) (pr-str terms)))
+        (is (= [0 0] (statistics "lazy" "dog"))))
+      (is (nil? (statistics "the" "quick")) "not a candidate")
+      (is (nil? (.get sidecar (od-key "postings.krovetz" "" "quick" "brown"))) "other part")
+      (is (.matches sidecar (str index))))))
@@ -0,0 +1,29 @@
+(ns real-wsdm.sketch-ngram-table-test
+  (:require [clojure.test :refer :all]
+            [real-wsdm.test-util :refer :all])
+  (:import real_wsdm.SketchNGramTable))
+
+(deftest sketch-round-trip
+  (let [ngrams (random-ngrams 20000 7)
+        path (write-tsv ngrams)
+        sketch (tmp-path ".sketch")
+        error 0.01]
+    (SketchNGramTable/build path sketch error)
+    (is (SketchNGramTable/isSketch sketch))
+    (is (not (SketchNGramTable/isSketch path)))
+    (let [table (SketchNGramTable/open sketch)
+          values (lookups table (keys ngrams))]
+      ; colliding fingerprints share a slot
+      (is (<= (- (count ngrams) 5) (.size table) (count ngrams)))
+      (is (= (count ngrams) (count values)))
+      (let [wrong (for [[ngram count] ngrams
+                        :let [value (values ngram)]
+                        ; relative error, then rounding to an integer
+                        :when (> (Math/abs (- (double value) count)) (+ (* error count) 0.5 1e-9))]
+                    [ngram count value])]
+        ; false hits : n-grams sharing a slot chain with one of the same fingerprint
+        (is (<= (count wrong) 5) (pr-str wrong)))
+      (testing "absent n-grams"
+        (let [absent (for [i (range 20000)] (str "a" i " b" i))]
+          ; false hits : about one in 2^16 per probed slot
+          (is (<= (count (lookups table absent)) 5)))))))
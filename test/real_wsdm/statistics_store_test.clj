@@ -0,0 +1,62 @@
+(ns real-wsdm.statistics-store-test
+  (:require [clojure.test :refer :all]
+            [clojure.java.io :as io]
+            [real-wsdm.test-util :refer :all])
+  (:import (real_wsdm NGramTableLoader NGramTableSnapshot StatisticsKey StatisticsStore)
+           org.lemurproject.galago.core.index.stats.NodeStatistics
+           org.lemurproject.galago.utility.Parameters
+           java.nio.file.Files
+           java.nio.file.attribute.FileAttribute))
+
+(defn- node-key
+  [i]
+  (StatisticsKey. "index" (if (even? i) "od:1" "uw:8") "postings" "" (into-array String [(str "t" i) (str "u" i)])))
+
+(defn- node-stats
+  [frequency document-count]
+  (doto (NodeStatistics.)
+    (-> .nodeFrequency (set! frequency))
+    (-> .nodeDocumentCount (set! document-count))))
+
+(defn- stored
+  [store i]
+  (when-let [stats (.get store (node-key i))]
+    [(.nodeFrequency stats) (.nodeDocumentCount stats)]))
+
+(deftest store-round-trip
+  (let [path (tmp-path ".store")
+        store (StatisticsStore/open path "index" 42 1000000)]
+    (is (zero? (.size store)))
+    (doseq [i (range 5000)]
+      (.record store (node-key i) (node-stats (* 3 i) i)))
+    (.record store (node-key 0) (node-stats 7 7))
+    (.flush store)
+    (testing "same index"
+      (let [restored (StatisticsStore/open path "index" 42 1000000)]
+        (is (= 5000 (.size restored)))
+        (is (every? #(= [(* 3 %) %] (stored restored %)) (range 5000)))
+        (is (nil? (stored restored 5000)))
+        (is (= 5000 (.hitCount restored)))))
+    (testing "capacity"
+      (is (= 100 (.size (StatisticsStore/open path "index" 42 100)))))
+    (testing "another version of the index"
+      (is (zero? (.size (StatisticsStore/open path "index" 43 1000000)))))
+    (testing "another kind of file"
+      (let [tsv (write-tsv (random-ngrams 100 8))]
+        (NGramTableSnapshot/write (NGramTableLoader/load tsv) tsv)
+        (io/copy (io/file (NGramTableSnapshot/snapshotPath tsv)) (io/file path))
+        (is (zero? (.size (StatisticsStore/open path "index" 42 1000000))))))))
+
+(deftest index-signature
+  (let [index #(doto (.toFile (Files/createTempDirectory "rwsdm-index" (into-array FileAttribute [])))
+                 (.deleteOnExit))
+        a (str (index))
+        b (str (index))
+        signature #(StatisticsStore/indexSignature (doto (Parameters/create) (.set "index" %)))]
+    (is (= (signature a) (signature a)))
+    (is (= (signature [a b]) (signature [a b])))
+    (is (not= (signature a) (signature [a b])))
+    (let [before (signature [a b])]
+      (spit (doto (io/file b "postings") (.deleteOnExit)) "postings")
+      (is (not= before (signature [a b]))))
+    (is (thrown? java.io.IOException (signature [a 3])))))
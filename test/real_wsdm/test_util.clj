@@ -0,0 +1,54 @@
+(ns real-wsdm.test-util
+  (:require [clojure.string :as str])
+  (:import real_wsdm.NGramTable
+           java.io.File
+           java.util.Random))
+
+(defn tmp-file
+  "new empty temp file, deleted on exit"
+  [suffix]
+  (doto (File/createTempFile "rwsdm-test" suffix)
+    (.deleteOnExit)))
+
+(defn tmp-path
+  "path of a temp file that does not exist yet"
+  [suffix]
+  (let [file (tmp-file suffix)]
+    (.delete file)
+    (.deleteOnExit file)
+    (str file)))
+
+(defn random-ngrams
+  "{\"t1 t2\" count} of n unigrams, bigrams and trigrams over a small vocabulary"
+  [n seed]
+  (let [random (Random. seed)
+        term #(str "t" (.nextInt random 200))]
+    (into {} (repeatedly n (fn []
+                             [(str/join " " (repeatedly (inc (.nextInt random 3)) term))
+                              (inc (.nextInt random 100000))])))))
+
+(defn write-tsv
+  "writes the n-grams ({ngram count}) as a TSV feature file, returns its path
+  (the snapshot written next to it is deleted on exit too)"
+  [ngrams]
+  (let [file (tmp-file ".tsv")]
+    (.deleteOnExit (File. (str file ".snapshot")))
+    (spit file (str/join (for [[ngram count] ngrams] (str ngram "\t" count "\n"))))
+    (str file)))
+
+(defn lookup
+  "value of the n-gram (terms separated by spaces) in the table, or nil"
+  [^NGramTable table ngram]
+  (let [terms (str/split ngram #" ")
+        ids (int-array (map #(.termId table %) terms))
+        value (.get table ids 0 (count terms))]
+    (when (not= value NGramTable/MISSING)
+      value)))
+
+(defn lookups
+  "{ngram value} of the n-grams in the table"
+  [table ngrams]
+  (into {} (for [ngram ngrams
+                 :let [value (lookup table ngram)]
+                 :when value]
+             [ngram value])))